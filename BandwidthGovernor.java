@@ -0,0 +1,185 @@
+package com.handsmap.util.download;
+
+/**
+ * 下载带宽控制，使用令牌桶限速
+ * <p/>
+ * 支持全局限速、单个任务限速，以及给前台（高优先级）任务预留一部分全局带宽：有前台任务在下载时，
+ * 后台任务只能使用除预留部分以外的带宽。没有设置任何限速时下载线程不加锁直接返回
+ *
+ * @author DaHui
+ */
+class BandwidthGovernor
+{
+
+    //不限速
+    static final long UNLIMITED = 0;
+
+    private final TokenBucket mGlobalBucket = new TokenBucket();
+    //后台任务使用的带宽，全局限速减去前台预留部分
+    private final TokenBucket mBackgroundBucket = new TokenBucket();
+    //是否设置了全局限速
+    private volatile boolean mLimited;
+    //前台任务预留的带宽百分比
+    private volatile int mForegroundReservePercent;
+    //正在下载的前台任务数
+    private volatile int mForegroundCount;
+
+    /**
+     * 限速等待过程中检查是否需要停止，暂停的任务不用等完欠的令牌
+     */
+    interface StopSignal
+    {
+        boolean isStopped();
+    }
+
+    /**
+     * 设置全局限速
+     *
+     * @param bytesPerSecond 字节/秒，小于等于0时不限速
+     */
+    synchronized void setGlobalLimit(long bytesPerSecond)
+    {
+        mGlobalBucket.setRate(bytesPerSecond);
+        updateBackgroundRate();
+        mLimited = bytesPerSecond > 0;
+    }
+
+    long getGlobalLimit()
+    {
+        return mGlobalBucket.getRate();
+    }
+
+    /**
+     * 设置前台任务预留的带宽，只在设置了全局限速时有效
+     *
+     * @param percent 0-100
+     */
+    synchronized void setForegroundReserve(int percent)
+    {
+        mForegroundReservePercent = Math.max(0, Math.min(100, percent));
+        updateBackgroundRate();
+    }
+
+    private void updateBackgroundRate()
+    {
+        long global = mGlobalBucket.getRate();
+        mBackgroundBucket.setRate(global * (100 - mForegroundReservePercent) / 100);
+    }
+
+    synchronized void onTaskStart(boolean foreground)
+    {
+        if (foreground)
+        {
+            mForegroundCount++;
+        }
+    }
+
+    synchronized void onTaskFinish(boolean foreground)
+    {
+        if (foreground)
+        {
+            mForegroundCount--;
+        }
+    }
+
+    /**
+     * 下载线程读到数据后调用，超过限速时阻塞当前线程
+     *
+     * @param bytes      读到的字节数
+     * @param foreground 是否前台任务
+     * @param taskBucket 任务自己的限速，没有时为null
+     * @param stop       停止时提前返回，不需要时为null
+     */
+    void acquire(int bytes, boolean foreground, TokenBucket taskBucket, StopSignal stop)
+    {
+        if (taskBucket != null)
+        {
+            taskBucket.acquire(bytes, stop);
+        }
+        if (!mLimited)
+        {
+            return;
+        }
+        if (!foreground && mForegroundCount > 0 && mForegroundReservePercent > 0)
+        {
+            mBackgroundBucket.acquire(bytes, stop);
+        }
+        mGlobalBucket.acquire(bytes, stop);
+    }
+
+    /**
+     * 令牌桶，最多积攒一秒的令牌；令牌不足时先透支，再按欠的令牌数分段休眠，每段之间检查是否停止
+     */
+    static final class TokenBucket
+    {
+
+        //每次休眠的上限，限速很低时欠的令牌可能要等好几秒
+        private static final long SLEEP_SLICE_MILLIS = 50;
+
+        private long mRate;
+        private double mTokens;
+        private long mLastNanos = System.nanoTime();
+
+        TokenBucket()
+        {
+        }
+
+        TokenBucket(long bytesPerSecond)
+        {
+            setRate(bytesPerSecond);
+        }
+
+        synchronized void setRate(long bytesPerSecond)
+        {
+            mRate = Math.max(UNLIMITED, bytesPerSecond);
+            mTokens = Math.min(mTokens, mRate);
+            mLastNanos = System.nanoTime();
+        }
+
+        synchronized long getRate()
+        {
+            return mRate;
+        }
+
+        /**
+         * 停止或者线程被中断时提前返回，已经透支的令牌留给之后的调用补上
+         */
+        void acquire(int bytes, StopSignal stop)
+        {
+            long sleepMillis;
+            synchronized (this)
+            {
+                if (mRate <= 0)
+                {
+                    return;
+                }
+                long now = System.nanoTime();
+                mTokens = Math.min(mRate, mTokens + (now - mLastNanos) * mRate / 1e9);
+                mLastNanos = now;
+                mTokens -= bytes;
+                if (mTokens >= 0)
+                {
+                    return;
+                }
+                sleepMillis = (long) (-mTokens * 1000 / mRate);
+            }
+            while (sleepMillis > 0)
+            {
+                if (stop != null && stop.isStopped())
+                {
+                    return;
+                }
+                long slice = Math.min(sleepMillis, SLEEP_SLICE_MILLIS);
+                try
+                {
+                    Thread.sleep(slice);
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                sleepMillis -= slice;
+            }
+        }
+    }
+}
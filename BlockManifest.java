@@ -0,0 +1,340 @@
+package com.handsmap.util.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 增量更新使用的块校验清单，和zsync一样按固定大小切分服务器上的新文件，每块记录弱校验和MD5
+ * <p/>
+ * 清单是文本格式，头部是“名字: 值”，空行之后每块一行“弱校验 MD5”（十六进制）：
+ * <pre>
+ * length: 123456789
+ * blocksize: 65536
+ * sha1: 文件的SHA-1，可选
+ *
+ * 0a1b2c3d 9e107d9d372bb6826bd81d3542a419d6
+ * ...
+ * </pre>
+ * 弱校验是rsync的滚动校验：a = Σx mod 2^16，b = Σ(n - i)·x mod 2^16，值为 (b << 16) | a。
+ * 在本地旧文件上逐字节滑动窗口，弱校验命中后再比较MD5，找到的块直接写入临时文件，剩下的块合并成区间从服务器下载
+ *
+ * @author DaHui
+ */
+class BlockManifest
+{
+
+    //块大小的上限，滑动窗口的缓冲区是两块大小，清单中的块更大时不做增量更新
+    static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    //块大小的下限，块数最多是文件大小除以下限，块太小时弱校验的误报也太多
+    static final int MIN_BLOCK_SIZE = 512;
+    //按声明的块数分配数组时的上限，超过后随着读到的行增长，清单声明的长度不可信
+    private static final int INITIAL_BLOCK_CAPACITY = 4096;
+
+    private long mLength;
+    private int mBlockSize;
+    private String mSha1;
+    private int[] mWeak;
+    private byte[][] mStrong;
+
+    private BlockManifest()
+    {
+    }
+
+    /**
+     * @throws IOException 格式不正确
+     */
+    static BlockManifest parse(InputStream in) throws IOException
+    {
+        BlockManifest manifest = new BlockManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        try
+        {
+            while ((line = reader.readLine()) != null && line.length() > 0)
+            {
+                int colon = line.indexOf(':');
+                if (colon <= 0)
+                {
+                    throw new IOException("bad manifest header: " + line);
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("length"))
+                {
+                    manifest.mLength = Long.parseLong(value);
+                } else if (name.equals("blocksize"))
+                {
+                    manifest.mBlockSize = Integer.parseInt(value);
+                } else if (name.equals("sha1"))
+                {
+                    manifest.mSha1 = value;
+                }
+            }
+            if (manifest.mBlockSize > MAX_BLOCK_SIZE)
+            {
+                // 块太大时滑动窗口的缓冲区占用的内存太多，不做增量更新，整个文件重新下载
+                throw new IOException("manifest blocksize " + manifest.mBlockSize + " exceeds " + MAX_BLOCK_SIZE);
+            }
+            if (manifest.mLength <= 0 || manifest.mBlockSize < MIN_BLOCK_SIZE)
+            {
+                throw new IOException("bad manifest length " + manifest.mLength + ", blocksize " + manifest.mBlockSize);
+            }
+            long blocks = (manifest.mLength + manifest.mBlockSize - 1) / manifest.mBlockSize;
+            if (blocks > Integer.MAX_VALUE)
+            {
+                throw new IOException("manifest has too many blocks: " + blocks);
+            }
+            int count = (int) blocks;
+            // 数组按实际读到的块增长，清单只写了头部时不会按声明的长度分配内存
+            int capacity = Math.min(count, INITIAL_BLOCK_CAPACITY);
+            manifest.mWeak = new int[capacity];
+            manifest.mStrong = new byte[capacity][];
+            for (int i = 0; i < count; i++)
+            {
+                if (i == manifest.mWeak.length)
+                {
+                    capacity = (int) Math.min(count, capacity * 2L);
+                    manifest.mWeak = Arrays.copyOf(manifest.mWeak, capacity);
+                    manifest.mStrong = Arrays.copyOf(manifest.mStrong, capacity);
+                }
+                line = reader.readLine();
+                if (line == null)
+                {
+                    throw new IOException("manifest has " + i + " of " + count + " blocks");
+                }
+                String[] values = line.trim().split("\\s+");
+                if (values.length != 2)
+                {
+                    throw new IOException("bad manifest block: " + line);
+                }
+                manifest.mWeak[i] = (int) Long.parseLong(values[0], 16);
+                manifest.mStrong[i] = parseHex(values[1]);
+            }
+        } catch (NumberFormatException e)
+        {
+            throw new IOException("bad manifest: " + e.getMessage());
+        }
+        return manifest;
+    }
+
+    long getLength()
+    {
+        return mLength;
+    }
+
+    /**
+     * @return 没有时返回null
+     */
+    String getSha1()
+    {
+        return mSha1;
+    }
+
+    /**
+     * 在旧文件中查找新文件的块，找到的块写入target的对应位置
+     *
+     * @param source 本地的旧文件
+     * @param target 新文件的临时文件，长度已经设置好
+     * @return 需要从服务器下载的区间，按位置排序
+     */
+    List<DownloadSegment> reuse(File source, File target) throws IOException
+    {
+        MessageDigest md5;
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        // 最后一块不满时总是下载，只在完整的块中查找
+        int fullBlocks = (int) (mLength / mBlockSize);
+        Map<Integer, List<Integer>> index = new HashMap<>();
+        for (int i = 0; i < fullBlocks; i++)
+        {
+            List<Integer> blocks = index.get(mWeak[i]);
+            if (blocks == null)
+            {
+                blocks = new ArrayList<>(1);
+                index.put(mWeak[i], blocks);
+            }
+            blocks.add(i);
+        }
+        boolean[] found = new boolean[mWeak.length];
+        int bs = mBlockSize;
+        InputStream in = new FileInputStream(source);
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try
+        {
+            // 环形使用两块大小的缓冲区：窗口到末尾时把剩下不到一块的数据移到开头，再读满
+            byte[] buf = new byte[bs * 2];
+            int len = fill(in, buf, 0);
+            int pos = 0;
+            int a = 0;
+            int b = 0;
+            boolean fresh = true;
+            while (true)
+            {
+                if (pos + bs > len)
+                {
+                    // 窗口超出缓冲区时把剩下的数据移到开头再读
+                    System.arraycopy(buf, pos, buf, 0, len - pos);
+                    len = fill(in, buf, len - pos);
+                    pos = 0;
+                    if (len < bs)
+                    {
+                        break;
+                    }
+                }
+                if (fresh)
+                {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < bs; i++)
+                    {
+                        int x = buf[pos + i] & 0xff;
+                        a += x;
+                        b += (bs - i) * x;
+                    }
+                    a &= 0xffff;
+                    b &= 0xffff;
+                    fresh = false;
+                }
+                List<Integer> candidates = index.get((b << 16) | a);
+                boolean matched = false;
+                if (candidates != null)
+                {
+                    md5.reset();
+                    md5.update(buf, pos, bs);
+                    byte[] strong = md5.digest();
+                    for (int block : candidates)
+                    {
+                        if (!found[block] && startsWith(strong, mStrong[block]))
+                        {
+                            found[block] = true;
+                            out.seek((long) block * bs);
+                            out.write(buf, pos, bs);
+                            matched = true;
+                        }
+                    }
+                }
+                if (matched)
+                {
+                    pos += bs;
+                    fresh = true;
+                    continue;
+                }
+                if (pos + bs >= len)
+                {
+                    System.arraycopy(buf, pos, buf, 0, len - pos);
+                    len = fill(in, buf, len - pos);
+                    pos = 0;
+                    if (len <= bs)
+                    {
+                        break;
+                    }
+                }
+                int removed = buf[pos] & 0xff;
+                int added = buf[pos + bs] & 0xff;
+                a = (a - removed + added) & 0xffff;
+                b = (b - bs * removed + a) & 0xffff;
+                pos++;
+            }
+        } finally
+        {
+            out.close();
+            in.close();
+        }
+        return missingRanges(found);
+    }
+
+    /**
+     * 相邻的缺失块合并成一个区间
+     */
+    private List<DownloadSegment> missingRanges(boolean[] found)
+    {
+        List<DownloadSegment> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < found.length)
+        {
+            if (found[i])
+            {
+                i++;
+                continue;
+            }
+            int first = i;
+            while (i < found.length && !found[i])
+            {
+                i++;
+            }
+            long start = (long) first * mBlockSize;
+            long end = Math.min((long) i * mBlockSize, mLength) - 1;
+            ranges.add(new DownloadSegment(start, end, 0));
+        }
+        return ranges;
+    }
+
+    /**
+     * 读满缓冲区或者读到文件末尾
+     *
+     * @return 缓冲区中的数据长度
+     */
+    private static int fill(InputStream in, byte[] buf, int len) throws IOException
+    {
+        while (len < buf.length)
+        {
+            int count = in.read(buf, len, buf.length - len);
+            if (count == -1)
+            {
+                break;
+            }
+            len += count;
+        }
+        return len;
+    }
+
+    /**
+     * 清单中的MD5可以截短，只比较前面的字节
+     */
+    private static boolean startsWith(byte[] digest, byte[] prefix)
+    {
+        if (prefix.length == 0 || prefix.length > digest.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (digest[i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] parseHex(String hex) throws IOException
+    {
+        if (hex.length() % 2 != 0)
+        {
+            throw new IOException("bad hex: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
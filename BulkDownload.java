@@ -0,0 +1,330 @@
+package com.handsmap.util.download;
+
+import android.os.Handler;
+
+import com.handsmap.util.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量下载大量小文件（POI图片、地图瓦片）
+ * <p/>
+ * 不创建DownloadTask，不写数据库和断点信息：几个线程共用连接池中的长连接依次请求，
+ * 响应直接写到目标文件旁边的临时文件再重命名，失败的文件下次重新下载；
+ * 整个批次只上报一个进度（按文件数），单个文件失败时按文件的URL回调错误，全部结束后按批次ID回调完成
+ *
+ * @author DaHui
+ */
+class BulkDownload implements DownloadEventDispatcher.Progress
+{
+
+    interface Listener
+    {
+        /**
+         * 单个文件下载失败，在下载线程中回调
+         *
+         * @param errorCode DownloadControl中的错误码
+         */
+        public void onFileError(BulkDownload bulk, String url, String errorCode);
+
+        /**
+         * 所有文件都处理完或者已经取消，在下载线程中回调
+         */
+        public void onFinished(BulkDownload bulk);
+    }
+
+    private static final String TAG = BulkDownload.class.getSimpleName();
+    private static final String PART_SUFFIX = ".part";
+    //同时请求的连接数，不超过连接池中每个主机的连接数
+    static final int DEFAULT_CONNECTIONS = 4;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final String mId;
+    private final DownloadEngine mEngine;
+    private final DownloadEventDispatcher mDispatcher;
+    private final List<String> mUrls;
+    private final File mDirectory;
+    private final Listener mListener;
+    private final DownloadMetrics.TaskTiming mTiming = new DownloadMetrics.TaskTiming();
+    //下一个要下载的文件
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicInteger mRunningWorkers = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicBoolean mReportPosted = new AtomicBoolean();
+    private final SpeedEstimator mSpeed = new SpeedEstimator(SpeedEstimator.DEFAULT_TIME_CONSTANT_MILLIS);
+    private volatile boolean mCancelled;
+    private long mStartNanos;
+    //以下字段只在进度线程中访问
+    private long mPercent;
+    private long mSpeedValue;
+    private long mRemainingTime = SpeedEstimator.UNKNOWN;
+
+    private final Runnable mReport = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            mReportPosted.set(false);
+            updateProgress();
+        }
+    };
+
+    BulkDownload(String id, DownloadEngine engine, DownloadEventDispatcher dispatcher, List<String> urls,
+                 File directory, Listener listener)
+    {
+        mId = id;
+        mEngine = engine;
+        mDispatcher = dispatcher;
+        mUrls = urls;
+        mDirectory = directory;
+        mListener = listener;
+    }
+
+    void start(int connections)
+    {
+        int workers = Math.max(1, Math.min(connections, mUrls.size()));
+        mStartNanos = System.nanoTime();
+        mSpeed.reset(0);
+        mRunningWorkers.set(workers);
+        for (int i = 0; i < workers; i++)
+        {
+            mEngine.getWorkerExecutor().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * 取消后正在下载的文件下载完，之后的文件不再下载
+     */
+    void cancel()
+    {
+        mCancelled = true;
+    }
+
+    @Override
+    public String getUrl()
+    {
+        return mId;
+    }
+
+    @Override
+    public long getDownloadPercent()
+    {
+        return mPercent;
+    }
+
+    @Override
+    public long getDownloadSpeed()
+    {
+        return mSpeedValue;
+    }
+
+    @Override
+    public long getRemainingTime()
+    {
+        return mRemainingTime;
+    }
+
+    int getFailedCount()
+    {
+        return mFailed.get();
+    }
+
+    boolean isCancelled()
+    {
+        return mCancelled;
+    }
+
+    private void work()
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int index;
+        while (!mCancelled && (index = mNext.getAndIncrement()) < mUrls.size())
+        {
+            String url = mUrls.get(index);
+            String error = download(url, buffer);
+            if (error != null)
+            {
+                mFailed.incrementAndGet();
+                mListener.onFileError(this, url, error);
+            }
+            mDone.incrementAndGet();
+            postProgress();
+        }
+        if (mRunningWorkers.decrementAndGet() == 0)
+        {
+            postProgress();
+            mListener.onFinished(this);
+        }
+    }
+
+    /**
+     * @return 成功或者文件已经存在时返回null，否则返回错误码
+     */
+    private String download(String url, byte[] buffer)
+    {
+        File file;
+        try
+        {
+            file = targetFile(url);
+        } catch (IOException e)
+        {
+            Logger.e(TAG, url + ": " + e.getMessage());
+            return DownloadControl.ERROR_URL;
+        }
+        if (file.length() > 0)
+        {
+            return null;
+        }
+        try
+        {
+            return fetch(url, file, buffer);
+        } catch (IOException e)
+        {
+            // 连接池中的长连接可能已经被服务器关闭，重试一次
+            try
+            {
+                return fetch(url, file, buffer);
+            } catch (IOException retry)
+            {
+                Logger.e(TAG, url + ": " + retry.getMessage());
+                return DownloadControl.ERROR_DOWNLOAD_INTERRUPT;
+            }
+        }
+    }
+
+    private String fetch(String url, File file, byte[] buffer) throws IOException
+    {
+        HttpGet httpGet = new HttpGet(url);
+        HttpResponse response = mEngine.getConnectionPool().execute(httpGet, mTiming);
+        HttpEntity entity = response.getEntity();
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null)
+        {
+            httpGet.abort();
+            return DownloadControl.ERROR_URL;
+        }
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            httpGet.abort();
+            return DownloadControl.ERROR_NOMEMORY;
+        }
+        File part = new File(file.getPath() + PART_SUFFIX);
+        InputStream in = entity.getContent();
+        OutputStream out = null;
+        boolean complete = false;
+        try
+        {
+            out = new FileOutputStream(part);
+            int count;
+            while ((count = in.read(buffer)) != -1)
+            {
+                mEngine.getBandwidthGovernor().acquire(count, false, null, null);
+                out.write(buffer, 0, count);
+                mBytes.addAndGet(count);
+            }
+            out.close();
+            out = null;
+            complete = true;
+        } finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                } catch (IOException ignored)
+                {
+                }
+            }
+            if (complete)
+            {
+                // 读完之后关闭，连接放回连接池给下一个文件用
+                in.close();
+            } else
+            {
+                httpGet.abort();
+                part.delete();
+            }
+        }
+        if (!part.renameTo(file))
+        {
+            part.delete();
+            return DownloadControl.ERROR_NOMEMORY;
+        }
+        return null;
+    }
+
+    /**
+     * 保留URL中的路径，不同目录下的同名文件（比如瓦片的z/x/y.png）不会互相覆盖
+     */
+    private File targetFile(String url) throws IOException
+    {
+        String path;
+        try
+        {
+            path = new URL(url).getPath();
+        } catch (MalformedURLException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        String root = mDirectory.getCanonicalPath() + File.separator;
+        File file = new File(root, path);
+        if (path.length() == 0 || path.endsWith("/") || !file.getCanonicalPath().startsWith(root))
+        {
+            throw new IOException("bad path " + path);
+        }
+        return file;
+    }
+
+    /**
+     * 同一时间只有一个上报在进度线程中排队
+     */
+    private void postProgress()
+    {
+        if (mReportPosted.compareAndSet(false, true))
+        {
+            Handler handler = mEngine.getProgressHandler();
+            handler.post(mReport);
+        }
+    }
+
+    /**
+     * 在进度线程中执行
+     */
+    private void updateProgress()
+    {
+        int total = mUrls.size();
+        int done = mDone.get();
+        mSpeed.sample(mBytes.get());
+        mSpeedValue = mSpeed.getBytesPerSecond();
+        mPercent = total > 0 ? done * 100L / total : 100;
+        // 小文件的耗时主要是请求次数，按已经完成的文件的平均耗时估计剩余时间
+        long elapsedMillis = (System.nanoTime() - mStartNanos) / 1000000;
+        mRemainingTime = done > 0 ? elapsedMillis * (total - done) / done : SpeedEstimator.UNKNOWN;
+        mDispatcher.onProgress(this);
+    }
+}
@@ -0,0 +1,211 @@
+package com.handsmap.util.download;
+
+import android.os.Handler;
+
+import com.handsmap.util.Logger;
+
+/**
+ * 自适应并发控制，代替固定的同时下载任务数
+ * <p/>
+ * 在进度线程中定时采样总的下载速度和请求延迟（请求发出到收到响应头的时间），
+ * 有任务在等待时逐个增加并发数，速度不再提升或者延迟明显变大时减少并发数，减少之后保持几次采样再调整。
+ * 从原来固定的同时下载数开始；自适应的上限不超过连接池每个主机的连接数，超过的任务只会等连接。
+ * 调度器按getLimit()分配下载位置，每次调整都记录原因
+ *
+ * @author DaHui
+ */
+class ConcurrencyController implements Runnable
+{
+
+    public interface Listener
+    {
+        //正在下载的任务数
+        public int getRunningCount();
+
+        //等待下载的任务数
+        public int getQueuedCount();
+
+        //并发数变化，在进度线程中回调
+        public void onLimitChanged(int limit);
+    }
+
+    private static final String TAG = ConcurrencyController.class.getSimpleName();
+    //采样间隔
+    private static final long SAMPLE_INTERVAL_MILLIS = 5000;
+    //减少并发数之后保持不变的采样次数，避免在两个值之间来回调整
+    private static final int HOLD_SAMPLES_AFTER_BACKOFF = 3;
+    //速度提升超过这个比例才认为增加并发有效
+    private static final double GAIN_THRESHOLD = 1.1;
+    //延迟超过基准延迟的倍数时认为网络拥塞
+    private static final double LATENCY_THRESHOLD = 2.0;
+
+    private final Handler mHandler;
+    private final DownloadEngine mEngine;
+    private final Listener mListener;
+    private volatile boolean mAdaptive = true;
+    private volatile int mMaxLimit;
+    private volatile int mLimit;
+    private volatile String mReason = "initial";
+
+    //以下字段只在进度线程中访问
+    private long mLastBytes;
+    private long mLastRequests;
+    private long mLastLatencyNanos;
+    private long mLastSampleNanos = System.nanoTime();
+    //上一次采样的速度，字节/秒
+    private long mLastThroughput;
+    //观察到的最小平均延迟，作为基准
+    private long mBaseLatencyMillis = Long.MAX_VALUE;
+    //上一次调整是否是增加
+    private boolean mLastIncreased;
+    //还要保持不变的采样次数
+    private int mHoldSamples;
+
+    ConcurrencyController(Handler handler, DownloadEngine engine, int maxLimit, Listener listener)
+    {
+        mHandler = handler;
+        mEngine = engine;
+        mListener = listener;
+        mMaxLimit = maxLimit;
+        // 从原来固定的同时下载数开始，速度或者延迟变差时再减少
+        mLimit = getAdaptiveMaxLimit();
+        mHandler.postDelayed(this, SAMPLE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * 当前允许同时下载的任务数
+     */
+    int getLimit()
+    {
+        return mLimit;
+    }
+
+    /**
+     * 最近一次调整并发数的原因
+     */
+    String getLastChangeReason()
+    {
+        return mReason;
+    }
+
+    /**
+     * 并发数上限，关闭自适应时直接使用上限
+     */
+    void setMaxLimit(int maxLimit)
+    {
+        mMaxLimit = maxLimit;
+        if (!mAdaptive)
+        {
+            change(maxLimit, "max limit " + maxLimit);
+        } else if (mLimit > getAdaptiveMaxLimit())
+        {
+            change(getAdaptiveMaxLimit(), "max limit " + maxLimit);
+        }
+    }
+
+    /**
+     * 自适应时并发数的上限：设置的上限和每个主机的连接数中较小的一个
+     */
+    private int getAdaptiveMaxLimit()
+    {
+        return Math.max(1, Math.min(mMaxLimit, mEngine.getConnectionPool().getMaxConnectionsPerHost()));
+    }
+
+    void setAdaptive(boolean adaptive)
+    {
+        mAdaptive = adaptive;
+        if (!adaptive)
+        {
+            change(mMaxLimit, "adaptive disabled");
+        } else if (mLimit > getAdaptiveMaxLimit())
+        {
+            change(getAdaptiveMaxLimit(), "adaptive enabled");
+        }
+    }
+
+    void shutdown()
+    {
+        mHandler.removeCallbacks(this);
+    }
+
+    @Override
+    public void run()
+    {
+        sample();
+        mHandler.postDelayed(this, SAMPLE_INTERVAL_MILLIS);
+    }
+
+    private void sample()
+    {
+        long now = System.nanoTime();
+        long bytes = mEngine.getTransferredBytes();
+        DownloadConnectionPool pool = mEngine.getConnectionPool();
+        long requests = pool.getRequestCount();
+        long latencyNanos = pool.getLatencyNanos();
+
+        long elapsedMillis = Math.max(1, (now - mLastSampleNanos) / 1000000);
+        long throughput = (bytes - mLastBytes) * 1000 / elapsedMillis;
+        long newRequests = requests - mLastRequests;
+        long latencyMillis = newRequests > 0 ? (latencyNanos - mLastLatencyNanos) / newRequests / 1000000 : -1;
+        mLastSampleNanos = now;
+        mLastBytes = bytes;
+        mLastRequests = requests;
+        mLastLatencyNanos = latencyNanos;
+        if (latencyMillis >= 0)
+        {
+            mBaseLatencyMillis = Math.min(mBaseLatencyMillis, Math.max(1, latencyMillis));
+        }
+
+        int running = mListener.getRunningCount();
+        if (!mAdaptive || running == 0)
+        {
+            // 没有下载时不调整，下次重新比较速度
+            mLastThroughput = 0;
+            mLastIncreased = false;
+            return;
+        }
+        if (mHoldSamples > 0)
+        {
+            // 刚减少过，先观察减少之后的速度
+            mHoldSamples--;
+            mLastThroughput = throughput;
+            mLastIncreased = false;
+            return;
+        }
+
+        int limit = mLimit;
+        if (latencyMillis > mBaseLatencyMillis * LATENCY_THRESHOLD && throughput < mLastThroughput * GAIN_THRESHOLD
+                && limit > 1)
+        {
+            change(limit - 1, "latency " + latencyMillis + "ms > " + LATENCY_THRESHOLD + "x base "
+                    + mBaseLatencyMillis + "ms");
+            mLastIncreased = false;
+            mHoldSamples = HOLD_SAMPLES_AFTER_BACKOFF;
+        } else if (mLastIncreased && throughput < mLastThroughput * GAIN_THRESHOLD && limit > 1)
+        {
+            change(limit - 1, "no throughput gain at " + limit + " (" + throughput + " B/s)");
+            mLastIncreased = false;
+            mHoldSamples = HOLD_SAMPLES_AFTER_BACKOFF;
+        } else if (running >= limit && mListener.getQueuedCount() > 0 && limit < getAdaptiveMaxLimit())
+        {
+            change(limit + 1, "probe, throughput " + throughput + " B/s");
+            mLastIncreased = true;
+        } else
+        {
+            mLastIncreased = false;
+        }
+        mLastThroughput = throughput;
+    }
+
+    private void change(int limit, String reason)
+    {
+        limit = Math.max(1, limit);
+        mReason = reason;
+        if (limit != mLimit)
+        {
+            Logger.d(TAG, "limit " + mLimit + " -> " + limit + ": " + reason);
+            mLimit = limit;
+            mListener.onLimitChanged(limit);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.handsmap.util.download;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.handsmap.util.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * 按文件摘要索引已经下载完成的文件，不同URL（镜像、带版本号的路径）的内容相同时直接复用，不再下载
+ * <p/>
+ * 只有设置了期望摘要并且校验通过的文件才会加入索引；查找时检查文件大小和修改时间，
+ * 文件被删除或者修改过时丢弃索引项，复用的任务放到临时文件后还会重新计算摘要。同一个文件系统上使用硬链接，不支持时复制
+ *
+ * @author DaHui
+ */
+class ContentIndex
+{
+
+    private static final String TAG = ContentIndex.class.getSimpleName();
+    static final String FILE_NAME = "download_content.index";
+
+    private final File mFile;
+    //摘要 -> 大小,修改时间,路径
+    private Properties mEntries;
+
+    ContentIndex(File file)
+    {
+        mFile = file;
+    }
+
+    /**
+     * 记录已经校验过摘要的文件
+     */
+    synchronized void put(String algorithm, String digest, File file)
+    {
+        ensureLoaded();
+        mEntries.setProperty(key(algorithm, digest), file.length() + "," + file.lastModified() + "," + file.getPath());
+        save();
+    }
+
+    /**
+     * 查找内容相同并且没有被修改过的文件
+     *
+     * @return 没有时返回null
+     */
+    synchronized File get(String algorithm, String digest)
+    {
+        ensureLoaded();
+        String key = key(algorithm, digest);
+        String value = mEntries.getProperty(key);
+        if (value == null)
+        {
+            return null;
+        }
+        String[] values = value.split(",", 3);
+        File file = values.length == 3 ? new File(values[2]) : null;
+        if (file == null || !values[0].equals(String.valueOf(file.length()))
+                || !values[1].equals(String.valueOf(file.lastModified())))
+        {
+            mEntries.remove(key);
+            save();
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * 文件的内容和摘要对不上（大小和修改时间没变但内容被改过）时丢弃索引项
+     */
+    synchronized void remove(String algorithm, String digest)
+    {
+        ensureLoaded();
+        if (mEntries.remove(key(algorithm, digest)) != null)
+        {
+            save();
+        }
+    }
+
+    /**
+     * 把source的内容放到target，先尝试硬链接，失败时复制
+     */
+    static void linkOrCopy(File source, File target, byte[] buffer) throws IOException
+    {
+        target.delete();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        {
+            try
+            {
+                Os.link(source.getPath(), target.getPath());
+                return;
+            } catch (ErrnoException e)
+            {
+                // 不在同一个文件系统上或者文件系统不支持（比如SD卡上的FAT），下面复制
+            }
+        }
+        InputStream in = new FileInputStream(source);
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(target);
+            int count;
+            while ((count = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, count);
+            }
+        } finally
+        {
+            closeQuietly(out);
+            closeQuietly(in);
+        }
+    }
+
+    private static String key(String algorithm, String digest)
+    {
+        return algorithm.toUpperCase(Locale.US) + ":" + digest.toLowerCase(Locale.US);
+    }
+
+    private void ensureLoaded()
+    {
+        if (mEntries != null)
+        {
+            return;
+        }
+        mEntries = new Properties();
+        if (!mFile.exists())
+        {
+            return;
+        }
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(mFile);
+            mEntries.load(in);
+        } catch (IOException | RuntimeException e)
+        {
+            Logger.e(TAG, e.getMessage());
+            mEntries.clear();
+        } finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 先写临时文件再重命名，写到一半时进程被杀掉也不会损坏原来的索引
+     */
+    private void save()
+    {
+        File temp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(temp);
+            mEntries.store(out, null);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile))
+            {
+                throw new IOException("rename " + temp + " failed");
+            }
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+            temp.delete();
+        } finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            } catch (IOException ignored)
+            {
+            }
+        }
+    }
+}
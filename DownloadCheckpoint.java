@@ -0,0 +1,262 @@
+package com.handsmap.util.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 断点信息，和临时文件放在一起（xxx.download.cfg），记录文件总大小、服务器文件的校验值（ETag或Last-Modified）
+ * 以及每个分段的下载进度，单连接下载相当于只有一个分段；分段下载时每个分段可以单独断点续传
+ *
+ * @author DaHui
+ */
+class DownloadCheckpoint
+{
+
+    private static final String SUFFIX = ".cfg";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_SEGMENT_COUNT = "segment.count";
+    private static final String KEY_SEGMENT = "segment.";
+    private static final String KEY_VALIDATOR = "validator";
+
+    private final File mFile;
+    private long mTotalSize;
+    private DownloadSegment[] mSegments;
+    //If-Range使用的校验值
+    private String mValidator;
+    //已经删除，之后的保存直接忽略，避免定时保存把删除的文件又写回来
+    private boolean mDeleted;
+
+    private DownloadCheckpoint(File file)
+    {
+        mFile = file;
+    }
+
+    static File fileFor(File tempFile)
+    {
+        return new File(tempFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * 读取临时文件对应的断点信息，不存在或者内容损坏时返回null
+     */
+    static DownloadCheckpoint load(File tempFile)
+    {
+        File file = fileFor(tempFile);
+        if (!file.exists())
+        {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(file);
+            properties.load(in);
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint(file);
+            checkpoint.mTotalSize = Long.parseLong(properties.getProperty(KEY_TOTAL));
+            checkpoint.mValidator = properties.getProperty(KEY_VALIDATOR);
+            int count = Integer.parseInt(properties.getProperty(KEY_SEGMENT_COUNT));
+            checkpoint.mSegments = new DownloadSegment[count];
+            for (int i = 0; i < count; i++)
+            {
+                String[] values = properties.getProperty(KEY_SEGMENT + i).split(",");
+                checkpoint.mSegments[i] = new DownloadSegment(Long.parseLong(values[0]),
+                        Long.parseLong(values[1]), Long.parseLong(values[2]));
+            }
+            return checkpoint;
+        } catch (IOException | RuntimeException e)
+        {
+            return null;
+        } finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 按分段数平均切分文件，最后一段包含余下的字节
+     *
+     * @param validator 服务器文件的ETag或Last-Modified，没有时为null
+     */
+    static DownloadCheckpoint create(File tempFile, long totalSize, int segmentCount, String validator)
+    {
+        DownloadCheckpoint checkpoint = new DownloadCheckpoint(fileFor(tempFile));
+        checkpoint.mTotalSize = totalSize;
+        checkpoint.mValidator = validator;
+        checkpoint.mSegments = new DownloadSegment[segmentCount];
+        long segmentSize = totalSize / segmentCount;
+        for (int i = 0; i < segmentCount; i++)
+        {
+            long start = i * segmentSize;
+            long end = i == segmentCount - 1 ? totalSize - 1 : start + segmentSize - 1;
+            checkpoint.mSegments[i] = new DownloadSegment(start, end, 0);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * 只下载指定的区间，增量更新时使用，其他部分已经从本地的旧文件中复制过来
+     *
+     * @param segments 需要下载的区间，可以为空
+     */
+    static DownloadCheckpoint create(File tempFile, long totalSize, List<DownloadSegment> segments, String validator)
+    {
+        DownloadCheckpoint checkpoint = new DownloadCheckpoint(fileFor(tempFile));
+        checkpoint.mTotalSize = totalSize;
+        checkpoint.mValidator = validator;
+        checkpoint.mSegments = segments.toArray(new DownloadSegment[segments.size()]);
+        return checkpoint;
+    }
+
+    long getTotalSize()
+    {
+        return mTotalSize;
+    }
+
+    /**
+     * 需要从网络下载的总大小，只有增量更新时小于文件大小
+     */
+    long getTransferSize()
+    {
+        long size = 0;
+        for (DownloadSegment segment : mSegments)
+        {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    /**
+     * 分段没有覆盖整个文件（增量更新），这时即使只有一个分段也不能当作单连接下载
+     */
+    boolean isSparse()
+    {
+        return getTransferSize() < mTotalSize;
+    }
+
+    DownloadSegment[] getSegments()
+    {
+        return mSegments;
+    }
+
+    String getValidator()
+    {
+        return mValidator;
+    }
+
+    /**
+     * 增量更新创建断点信息时还没有请求过文件本身，第一次请求文件时再记下校验值
+     */
+    void setValidator(String validator)
+    {
+        mValidator = validator;
+    }
+
+    /**
+     * 第一个没有下载完的分段，都下载完时返回最后一个分段
+     */
+    DownloadSegment getFirstIncompleteSegment()
+    {
+        for (DownloadSegment segment : mSegments)
+        {
+            if (!segment.isComplete())
+            {
+                return segment;
+            }
+        }
+        return mSegments[mSegments.length - 1];
+    }
+
+    /**
+     * 所有分段已经下载的字节数
+     */
+    long getDownloadedSize()
+    {
+        long size = 0;
+        for (DownloadSegment segment : mSegments)
+        {
+            size += segment.downloaded;
+        }
+        return size;
+    }
+
+    boolean isComplete()
+    {
+        for (DownloadSegment segment : mSegments)
+        {
+            if (!segment.isComplete())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 保存断点信息，多个分段线程可能同时调用；先写临时文件再替换，进程在写入过程中被杀掉时原来的断点信息仍然完整
+     */
+    synchronized void save() throws IOException
+    {
+        if (mDeleted)
+        {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(KEY_TOTAL, String.valueOf(mTotalSize));
+        properties.setProperty(KEY_SEGMENT_COUNT, String.valueOf(mSegments.length));
+        if (mValidator != null)
+        {
+            properties.setProperty(KEY_VALIDATOR, mValidator);
+        }
+        for (int i = 0; i < mSegments.length; i++)
+        {
+            DownloadSegment segment = mSegments[i];
+            properties.setProperty(KEY_SEGMENT + i, segment.start + "," + segment.end + "," + segment.downloaded);
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(temp);
+            properties.store(out, null);
+        } finally
+        {
+            closeQuietly(out);
+        }
+        if (!temp.renameTo(mFile))
+        {
+            temp.delete();
+            throw new IOException("rename " + temp + " failed");
+        }
+    }
+
+    synchronized void delete()
+    {
+        mDeleted = true;
+        if (mFile.exists())
+        {
+            mFile.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            } catch (IOException e)
+            {
+                // ignore
+            }
+        }
+    }
+}
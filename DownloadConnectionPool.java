@@ -0,0 +1,219 @@
+package com.handsmap.util.download;
+
+import android.os.Handler;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有下载任务共用的HTTP连接池，保持长连接，避免每个任务（以及每次断点续传）重新建立TCP和TLS连接
+ * <p/>
+ * 每个主机的连接数有上限，空闲超时的连接定时关闭；统计请求数和新建连接数，用来观察连接复用情况，
+ * 每次请求的DNS、建立连接和首字节耗时记录到DownloadMetrics
+ *
+ * @author DaHui
+ */
+class DownloadConnectionPool
+{
+
+    private static final String TAG = DownloadConnectionPool.class.getSimpleName();
+    //连接池总的连接数上限
+    private static final int MAX_TOTAL_CONNECTIONS = 32;
+    //每个主机默认的连接数上限
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    //空闲连接保留时间
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+    private static final int CONNECTION_TIMEOUT = 20 * 1000;
+    private static final int SOCKET_TIMEOUT = 60 * 1000;
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024;
+
+    private final ThreadSafeClientConnManager mConnManager;
+    private final DefaultHttpClient mHttpClient;
+    private final ConnPerRouteBean mConnPerRoute;
+    private final Handler mHandler;
+    private final DownloadMetrics mMetrics;
+    //发出的请求数
+    private final AtomicLong mRequestCount = new AtomicLong();
+    //新建立的连接数，请求数减去新建连接数就是复用连接的次数
+    private final AtomicLong mConnectionCount = new AtomicLong();
+    //所有请求从发出到收到响应头的总耗时
+    private final AtomicLong mLatencyNanos = new AtomicLong();
+
+    private final Runnable mEvictRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            mConnManager.closeExpiredConnections();
+            mConnManager.closeIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            mHandler.postDelayed(this, TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS));
+        }
+    };
+
+    /**
+     * @param handler 定时清理空闲连接的线程，为null时不清理（在普通JVM上压测时没有Looper）
+     * @param metrics 请求耗时统计
+     */
+    DownloadConnectionPool(Handler handler, DownloadMetrics metrics)
+    {
+        mHandler = handler;
+        mMetrics = metrics;
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setUserAgent(params, TAG);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        // 和AndroidHttpClient一致，不自动重定向
+        HttpClientParams.setRedirecting(params, false);
+        mConnPerRoute = new ConnPerRouteBean(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, mConnPerRoute);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        mConnManager = new ThreadSafeClientConnManager(params, schemeRegistry)
+        {
+            @Override
+            protected ClientConnectionOperator createConnectionOperator(SchemeRegistry registry)
+            {
+                return new CountingConnectionOperator(registry);
+            }
+        };
+        mHttpClient = new DefaultHttpClient(mConnManager, params);
+        if (mHandler != null)
+        {
+            mHandler.postDelayed(mEvictRunnable, TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS));
+        }
+    }
+
+    /**
+     * 发出请求，响应的内容读完后关闭输入流把连接还给连接池，没有读完时需要调用request.abort()
+     *
+     * @param timing 请求所属任务的耗时统计，可以为null
+     */
+    HttpResponse execute(HttpUriRequest request, DownloadMetrics.TaskTiming timing) throws IOException
+    {
+        DownloadMetrics.RequestTiming requestTiming = new DownloadMetrics.RequestTiming();
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(DownloadMetrics.ATTR_REQUEST_TIMING, requestTiming);
+        long start = System.nanoTime();
+        HttpResponse response;
+        try
+        {
+            response = mHttpClient.execute(request, context);
+        } finally
+        {
+            mLatencyNanos.addAndGet(System.nanoTime() - start);
+            mRequestCount.incrementAndGet();
+        }
+        long firstByte = System.nanoTime() - start - requestTiming.dnsNanos - requestTiming.connectNanos;
+        mMetrics.recordRequest(requestTiming, firstByte, timing);
+        return response;
+    }
+
+    /**
+     * 设置每个主机同时使用的连接数上限
+     */
+    void setMaxConnectionsPerHost(int max)
+    {
+        mConnPerRoute.setDefaultMaxPerRoute(max);
+    }
+
+    int getMaxConnectionsPerHost()
+    {
+        return mConnPerRoute.getDefaultMaxPerRoute();
+    }
+
+    long getRequestCount()
+    {
+        return mRequestCount.get();
+    }
+
+    long getConnectionCount()
+    {
+        return mConnectionCount.get();
+    }
+
+    long getLatencyNanos()
+    {
+        return mLatencyNanos.get();
+    }
+
+    /**
+     * 复用已有连接的请求数
+     */
+    long getReusedCount()
+    {
+        return Math.max(0, mRequestCount.get() - mConnectionCount.get());
+    }
+
+    void shutdown()
+    {
+        if (mHandler != null)
+        {
+            mHandler.removeCallbacks(mEvictRunnable);
+        }
+        mConnManager.shutdown();
+    }
+
+    /**
+     * 统计新建连接次数和建立连接的耗时
+     */
+    private final class CountingConnectionOperator extends DefaultClientConnectionOperator
+    {
+
+        CountingConnectionOperator(SchemeRegistry registry)
+        {
+            super(registry);
+        }
+
+        @Override
+        public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+                                   HttpContext context, HttpParams params) throws IOException
+        {
+            mConnectionCount.incrementAndGet();
+            DownloadMetrics.RequestTiming timing = context == null ? null
+                    : (DownloadMetrics.RequestTiming) context.getAttribute(DownloadMetrics.ATTR_REQUEST_TIMING);
+            if (timing == null)
+            {
+                super.openConnection(conn, target, local, context, params);
+                return;
+            }
+            // 先单独解析一次统计DNS耗时，下面建立连接时解析会命中系统的DNS缓存
+            long start = System.nanoTime();
+            InetAddress.getAllByName(target.getHostName());
+            long resolved = System.nanoTime();
+            timing.dnsNanos = resolved - start;
+            super.openConnection(conn, target, local, context, params);
+            timing.connectNanos = System.nanoTime() - resolved;
+        }
+    }
+}
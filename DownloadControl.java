@@ -1,10 +1,9 @@
 package com.handsmap.util.download;
 
 import android.content.Context;
-import android.content.Intent;
+import android.text.TextUtils;
 import android.util.Log;
 
-import com.handsmap.nsstour.manager.DataAccessManager;
 import com.handsmap.util.Logger;
 import com.handsmap.util.common.FileInfoUtils;
 import com.handsmap.util.common.StringUtils;
@@ -14,9 +13,10 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 下载核心控制器
@@ -28,7 +28,7 @@ public class DownloadControl extends Thread
 
     private static final String TAG = DownloadControl.class.getSimpleName();
     private static final int MAX_TASK_COUNT = 100;
-    private static final int MAX_DOWNLOAD_THREAD_COUNT = 10;
+    private static final int DEFAULT_DOWNLOAD_THREAD_COUNT = 10;
     public static final String SERVICE_ACTION = "com.handsmap.nsstour.download.DownloadService";
     public static final String RECEIVER_ACTION = "com.handsmap.nsstour.downloader.receiver";
     //还没有下载 初始默认状态
@@ -39,6 +39,20 @@ public class DownloadControl extends Thread
     public static final int STATUS_COMPLETE = 2;
     ///暂停下载
     public static final int STATUS_PAUSE = 3;
+    //后台预下载
+    public static final int PRIORITY_LOW = 0;
+    //默认优先级
+    public static final int PRIORITY_NORMAL = 5;
+    //用户正在使用的内容，可以抢占低优先级任务的下载位置
+    public static final int PRIORITY_HIGH = 10;
+    //RandomAccessFile写文件
+    public static final int WRITE_MODE_RANDOM_ACCESS = 0;
+    //FileChannel按位置写文件，使用复用的DirectByteBuffer
+    public static final int WRITE_MODE_CHANNEL = 1;
+    //内存映射写文件，文件大小未知时使用WRITE_MODE_CHANNEL
+    public static final int WRITE_MODE_MAPPED = 2;
+    //默认读写缓冲区大小
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
     //文件已存在
     public static final String ERROR_FILE_EXIST = "100";
     //URL不正确
@@ -47,23 +61,69 @@ public class DownloadControl extends Thread
     public static final String ERROR_NOMEMORY = "102";
     //下载过程中网络断开或者超时 该异常发生时下载终端需要用户点击下载以继续下载
     public static final String ERROR_DOWNLOAD_INTERRUPT = "103";
+    //下载完成后文件摘要和期望的不一致，临时文件已删除，需要重新下载
+    public static final String ERROR_DIGEST = "104";
+    //下载完成后后处理（比如解压）失败
+    public static final String ERROR_STAGE = "105";
+    //同一个URL已经在下载列表中，但摘要、后处理或者增量清单和这次添加的不一致，这次添加被拒绝，原来的任务不受影响
+    public static final String ERROR_CONFLICT = "106";
+    //增量更新时块校验清单的默认地址后缀
+    public static final String DELTA_MANIFEST_SUFFIX = ".blocks";
+    //批量下载的ID前缀，进度和完成事件中的URL是批量下载的ID
+    public static final String BULK_ID_PREFIX = "bulk:";
     private Context mContext;
     //等待下载的下载队列
-    private TaskQueue mTaskQueue;
-    //正在下载的任务
-    private List<DownloadTask> mDownloadingTasks;
-    //已经暂停的任务
-    private List<DownloadTask> mPausedTasks;
-    private boolean isRunning = false;
-    private DataAccessManager dataAccessManager;
+    private TaskQueue<DownloadTask> mTaskQueue;
+    //所有未结束的任务，按URL查找，记录任务状态
+    private TaskRegistry<DownloadTask> mRegistry;
+    private volatile boolean isRunning = false;
+    //下载线程池和进度线程
+    private DownloadEngine mEngine;
+    //同时下载的最大任务数，和下载线程池的大小一致
+    private volatile int mMaxDownloadThreadCount = DEFAULT_DOWNLOAD_THREAD_COUNT;
+    //自适应并发控制，实际同时下载的任务数不超过它的限制
+    private ConcurrencyController mConcurrencyController;
+    //进度和状态事件按帧合并后回调，广播只作为兼容选项
+    private DownloadEventDispatcher mDispatcher;
+    //正在进行的批量下载，按ID查找
+    private final Map<String, BulkDownload> mBulks = new ConcurrentHashMap<>();
+    private final AtomicInteger mBulkSequence = new AtomicInteger();
 
     public DownloadControl(Context context)
     {
         mContext = context;
-        dataAccessManager = DataAccessManager.getInstance(context);
-        mTaskQueue = new TaskQueue();
-        mDownloadingTasks = new ArrayList<DownloadTask>();
-        mPausedTasks = new ArrayList<DownloadTask>();
+        mRegistry = new TaskRegistry<>();
+        mTaskQueue = new TaskQueue<>(mRegistry, new TaskQueue.SlotLimit()
+        {
+            @Override
+            public int getLimit()
+            {
+                return mConcurrencyController.getLimit();
+            }
+        });
+        mEngine = new DownloadEngine(context, mMaxDownloadThreadCount);
+        mDispatcher = new DownloadEventDispatcher(context, mEngine.getProgressHandler());
+        mConcurrencyController = mEngine.startConcurrencyController(new ConcurrencyController.Listener()
+        {
+            @Override
+            public int getRunningCount()
+            {
+                return mRegistry.count(TaskRegistry.STATE_RUNNING);
+            }
+
+            @Override
+            public int getQueuedCount()
+            {
+                return mRegistry.count(TaskRegistry.STATE_QUEUED);
+            }
+
+            @Override
+            public void onLimitChanged(int limit)
+            {
+                // 并发数变大时可能有等待的任务可以开始了
+                mTaskQueue.signalSlotFreed();
+            }
+        });
         try
         {
             FileInfoUtils.mkdir();
@@ -85,12 +145,273 @@ public class DownloadControl extends Thread
         super.run();
         while (isRunning)
         {
-            DownloadTask task = mTaskQueue.poll();
-            mDownloadingTasks.add(task);
-            task.execute();
+            TaskRegistry.Record<DownloadTask> record = mTaskQueue.poll();
+            if (record == null)
+            {
+                // 线程被中断
+                break;
+            }
+            synchronized (record)
+            {
+                // 出队后可能已经被暂停或删除
+                if (record.getState() == TaskRegistry.STATE_RUNNING)
+                {
+                    record.task.start();
+                    long now = System.nanoTime();
+                    mEngine.getMetrics().recordQueueWait(now - record.queuedNanos);
+                    mEngine.getMetrics().recordDispatch(now - mTaskQueue.getReadyNanos());
+                }
+            }
+        }
+    }
+
+    /**
+     * 设置同时下载的最大任务数，开启自适应并发时是自适应调整的上限
+     *
+     * @param count 大于0
+     */
+    public void setMaxDownloadThreadCount(int count)
+    {
+        if (count <= 0)
+        {
+            return;
+        }
+        mMaxDownloadThreadCount = count;
+        mEngine.setParallelism(count);
+        mConcurrencyController.setMaxLimit(count);
+        // 数量变大时可能有等待的任务可以开始了
+        mTaskQueue.signalSlotFreed();
+    }
+
+    public int getMaxDownloadThreadCount()
+    {
+        return mMaxDownloadThreadCount;
+    }
+
+    /**
+     * 开启或关闭自适应并发，关闭后同时下载的任务数固定为getMaxDownloadThreadCount()
+     */
+    public void setAdaptiveConcurrency(boolean adaptive)
+    {
+        mConcurrencyController.setAdaptive(adaptive);
+    }
+
+    /**
+     * 当前允许同时下载的任务数
+     */
+    public int getConcurrencyLimit()
+    {
+        return mConcurrencyController.getLimit();
+    }
+
+    /**
+     * 最近一次调整同时下载任务数的原因
+     */
+    public String getConcurrencyChangeReason()
+    {
+        return mConcurrencyController.getLastChangeReason();
+    }
+
+    /**
+     * 设置下载进度的上报频率，对之后开始的任务生效
+     *
+     * @param intervalMillis 上报间隔，默认200毫秒
+     * @param minBytes       两次上报之间最少下载的字节数，默认64KB
+     */
+    public void setProgressThresholds(long intervalMillis, long minBytes)
+    {
+        mEngine.setProgressThresholds(intervalMillis, minBytes);
+    }
+
+    /**
+     * 设置写文件方式，对之后开始的任务生效，可以根据DownloadTask.getWriteThroughput()选择最快的方式
+     *
+     * @param mode WRITE_MODE_RANDOM_ACCESS、WRITE_MODE_CHANNEL、WRITE_MODE_MAPPED
+     */
+    public void setWriteMode(int mode)
+    {
+        mEngine.setWriteMode(mode);
+    }
+
+    /**
+     * 设置读写缓冲区大小，对之后开始的任务生效
+     *
+     * @param bufferSize 字节数，大于0
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        if (bufferSize > 0)
+        {
+            mEngine.setBufferSize(bufferSize);
+        }
+    }
+
+    /**
+     * 设置每个主机同时使用的连接数上限（包括分段下载的连接）
+     *
+     * @param max 大于0
+     */
+    public void setMaxConnectionsPerHost(int max)
+    {
+        if (max > 0)
+        {
+            mEngine.getConnectionPool().setMaxConnectionsPerHost(max);
+            // 自适应并发的上限跟着连接数变化
+            mConcurrencyController.setMaxLimit(mMaxDownloadThreadCount);
         }
     }
 
+    /**
+     * 连接池统计：请求数、新建连接数、复用连接数
+     */
+    public String getConnectionStats()
+    {
+        DownloadConnectionPool pool = mEngine.getConnectionPool();
+        return "requests=" + pool.getRequestCount() + ", connections=" + pool.getConnectionCount()
+                + ", reused=" + pool.getReusedCount();
+    }
+
+    /**
+     * 设置所有下载任务总的限速，下载过程中修改立即生效
+     *
+     * @param bytesPerSecond 字节/秒，小于等于0时不限速
+     */
+    public void setGlobalBandwidthLimit(long bytesPerSecond)
+    {
+        mEngine.getBandwidthGovernor().setGlobalLimit(bytesPerSecond);
+    }
+
+    /**
+     * 设置前台任务（优先级不低于PRIORITY_HIGH）预留的带宽，有前台任务在下载时后台任务只能使用剩下的部分
+     *
+     * @param percent 占全局限速的百分比，0-100
+     */
+    public void setForegroundBandwidthReserve(int percent)
+    {
+        mEngine.getBandwidthGovernor().setForegroundReserve(percent);
+    }
+
+    /**
+     * 设置单个任务的限速
+     *
+     * @param url
+     * @param bytesPerSecond 字节/秒，小于等于0时不限速
+     */
+    public void setTaskBandwidthLimit(String url, long bytesPerSecond)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        if (record != null)
+        {
+            record.task.setBandwidthLimit(bytesPerSecond);
+        }
+    }
+
+    /**
+     * 设置下载事件监听，进度按帧合并后回调，在进度线程中执行
+     *
+     * @param listener 为null时取消监听
+     */
+    public void setEventListener(DownloadEventListener listener)
+    {
+        mDispatcher.setListener(listener);
+    }
+
+    /**
+     * 是否同时发送RECEIVER_ACTION广播，兼容还在使用广播接收的客户端，默认关闭
+     */
+    public void setBroadcastEnabled(boolean enabled)
+    {
+        mDispatcher.setBroadcastEnabled(enabled);
+    }
+
+    /**
+     * 正在下载的任务已经预留、还没有真正占用的存储空间
+     *
+     * @return 字节数
+     */
+    public long getReservedStorage()
+    {
+        return mEngine.getStorageLedger().getReserved();
+    }
+
+    /**
+     * 任务当前的下载速度
+     *
+     * @return 字节/秒，任务不存在或者没有在下载时返回0
+     */
+    public long getTaskSpeed(String url)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        return record == null ? 0 : record.task.getDownloadSpeed();
+    }
+
+    /**
+     * 任务按当前速度估计的剩余时间
+     *
+     * @return 毫秒，未知时返回-1
+     */
+    public long getTaskRemainingTime(String url)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        return record == null ? SpeedEstimator.UNKNOWN : record.task.getRemainingTime();
+    }
+
+    /**
+     * 所有未结束的任务按当前总速度估计的剩余时间，文件大小还不知道的任务不计算在内
+     *
+     * @return 毫秒，没有在下载的任务时返回-1
+     */
+    public long getQueueRemainingTime()
+    {
+        long speed = 0;
+        for (TaskRegistry.Record<DownloadTask> record : mRegistry.running())
+        {
+            speed += record.task.getDownloadSpeed();
+        }
+        long remaining = 0;
+        for (TaskRegistry.Record<DownloadTask> record : mRegistry.records())
+        {
+            remaining += record.task.getRemainingSize();
+        }
+        return SpeedEstimator.remainingMillis(remaining, speed);
+    }
+
+    /**
+     * 导出下载统计：请求各阶段耗时和吞吐量的分布、按错误码统计的出错次数、连接池统计，
+     * 以及正在下载的任务各阶段的耗时
+     */
+    public String dumpMetrics()
+    {
+        StringBuilder sb = new StringBuilder();
+        mEngine.getMetrics().dump(sb);
+        sb.append(getConnectionStats()).append('\n');
+        sb.append("reserved_storage=").append(getReservedStorage()).append('\n');
+        sb.append("concurrency=").append(getConcurrencyLimit()).append(", running=")
+                .append(mRegistry.count(TaskRegistry.STATE_RUNNING)).append(", queued=")
+                .append(mRegistry.count(TaskRegistry.STATE_QUEUED)).append('\n');
+        for (TaskRegistry.Record<DownloadTask> record : mRegistry.running())
+        {
+            sb.append(record.url).append(": ");
+            record.task.dumpTiming(sb);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 停止控制线程和下载引擎，Service销毁时调用
+     */
+    public void shutdown()
+    {
+        isRunning = false;
+        interrupt();
+        for (BulkDownload bulk : mBulks.values())
+        {
+            bulk.cancel();
+        }
+        mEngine.shutdown();
+    }
+
     private DownloadTask downloadTask(String url) throws MalformedURLException
     {
         DownloadTask.DownloadTaskListener listener = new DownloadTask.DownloadTaskListener()
@@ -99,19 +420,14 @@ public class DownloadControl extends Thread
             @Override
             public void updateProgress(DownloadTask task)
             {
-                Intent updateIntent = new Intent(RECEIVER_ACTION);
-                updateIntent.putExtra(DownloadIntents.TYPE, DownloadIntents.Types.PROCESS);
-                long percent = task.getDownloadPercent();
-                dataAccessManager.updateDownloadCurrentSize(task.getUrl(), task.getDownloadSize());
-                updateIntent.putExtra(DownloadIntents.PROCESS_PROGRESS, String.valueOf(percent));
-                updateIntent.putExtra(DownloadIntents.URL, task.getUrl());
-                mContext.sendBroadcast(updateIntent);
+                mEngine.getStateJournal().updateCurrentSize(task.getUrl(), task.getDownloadSize());
+                mDispatcher.onProgress(task);
             }
 
             @Override
             public void finishDownload(DownloadTask task)
             {
-                completeTask(task, DownloadIntents.Types.COMPLETE);
+                completeTask(task);
             }
 
             @Override
@@ -120,7 +436,7 @@ public class DownloadControl extends Thread
                 errorTask(task, error);
             }
         };
-        return new DownloadTask(mContext, url, FileInfoUtils.FILE_ROOT, listener);
+        return new DownloadTask(mContext, mEngine, url, FileInfoUtils.FILE_ROOT, listener);
     }
 
     /**
@@ -130,15 +446,90 @@ public class DownloadControl extends Thread
      */
     public void addTask(String url)
     {
-        if (!FileInfoUtils.isSDCardPresent())
+        addTask(url, 0, PRIORITY_NORMAL, null, null, null, null);
+    }
+
+    /**
+     * 添加指定优先级的任务，优先级高的先下载，没有空闲的下载位置时会暂停优先级最低的正在下载的任务
+     *
+     * @param url
+     * @param priority 优先级，PRIORITY_LOW、PRIORITY_NORMAL、PRIORITY_HIGH或者其他整数，越大越优先
+     */
+    public void addTaskWithPriority(String url, int priority)
+    {
+        addTask(url, 0, priority, null, null, null, null);
+    }
+
+    /**
+     * 添加任务并指定分段数
+     *
+     * @param url
+     * @param segmentCount 分段数，小于等于0时使用默认分段数，服务器不支持Range时不分段
+     */
+    public void addTask(String url, int segmentCount)
+    {
+        addTask(url, segmentCount, PRIORITY_NORMAL, null, null, null, null);
+    }
+
+    /**
+     * 添加任务并在下载过程中计算文件摘要，下载完成时和期望的摘要比较，不一致时返回ERROR_DIGEST；
+     * 为了按顺序计算摘要，这种任务不分段下载
+     *
+     * @param url
+     * @param algorithm 摘要算法，MD5、SHA-256等
+     * @param digest    期望的摘要，十六进制字符串，不区分大小写
+     */
+    public void addTaskWithDigest(String url, String algorithm, String digest)
+    {
+        addTask(url, 0, PRIORITY_NORMAL, algorithm, digest, null, null);
+    }
+
+    /**
+     * 添加任务并在下载过程中把数据交给后处理阶段，后处理失败时返回ERROR_STAGE；这种任务不分段下载。
+     * 只有ZipExtractStage会记录到队列日志中，其他后处理阶段在进程重启后不再恢复
+     *
+     * @param url
+     * @param stage 后处理阶段
+     */
+    public void addTaskWithStage(String url, DownloadStage stage)
+    {
+        addTask(url, 0, PRIORITY_NORMAL, null, null, stage, null);
+    }
+
+    /**
+     * 添加zip压缩包下载任务，边下载边解压，下载完成时已经解压完
+     *
+     * @param url
+     * @param directory 解压到的目录
+     */
+    public void addTaskAndExtract(String url, String directory)
+    {
+        addTaskWithStage(url, new ZipExtractStage(new File(directory)));
+    }
+
+    /**
+     * 添加增量更新任务：本地已经有旧版本的文件时，按块校验清单复用没有变化的块，只下载变化的区间，
+     * 进度按实际需要下载的大小计算；没有旧文件或者清单不可用时下载整个文件
+     *
+     * @param url
+     * @param manifestUrl 块校验清单的地址，为null时使用url加上".blocks"
+     */
+    public void addTaskWithDelta(String url, String manifestUrl)
+    {
+        addTask(url, 0, PRIORITY_NORMAL, null, null, null,
+                manifestUrl != null ? manifestUrl : url + DELTA_MANIFEST_SUFFIX);
+    }
+
+    private void addTask(String url, int segmentCount, int priority, String algorithm, String digest,
+                         DownloadStage stage, String deltaManifestUrl)
+    {
+        if (!checkSDCard())
         {
-            ToastUtil.showToastShort(mContext, "未发现SD卡");
             return;
         }
 
-        if (!FileInfoUtils.isSdCardWrittenable())
+        if (coalesce(url, priority, algorithm, digest, stage, deltaManifestUrl))
         {
-            ToastUtil.showToastShort(mContext, "SD卡不能读写");
             return;
         }
 
@@ -149,245 +540,675 @@ public class DownloadControl extends Thread
         }
         try
         {
-            addTask(downloadTask(url));
+            DownloadTask task = downloadTask(url);
+            if (segmentCount > 0)
+            {
+                task.setSegmentCount(segmentCount);
+            }
+            task.setPriority(priority);
+            if (algorithm != null && digest != null)
+            {
+                task.setExpectedDigest(algorithm, digest);
+            }
+            task.setStage(stage);
+            task.setDeltaManifest(deltaManifestUrl);
+            addTask(task);
         } catch (MalformedURLException e)
         {
             Log.e(TAG, e.getMessage(), e);
         }
     }
 
-    /**
-     * 添加任务
-     *
-     * @param task 下载任务
-     */
-    private void addTask(DownloadTask task)
+    private boolean checkSDCard()
     {
-        waitTask(task);
-        mTaskQueue.offer(task);
+        if (!FileInfoUtils.isSDCardPresent())
+        {
+            ToastUtil.showToastShort(mContext, "未发现SD卡");
+            return false;
+        }
 
-        if (!this.isAlive())
+        if (!FileInfoUtils.isSdCardWrittenable())
         {
-            isRunning = true;
-            this.start();
+            ToastUtil.showToastShort(mContext, "SD卡不能读写");
+            return false;
         }
+        return true;
     }
 
     /**
-     * 暂停任务
+     * 批量添加任务，SD卡和任务数只检查一次，所有任务一次入队；
+     * 超出任务数上限的部分不添加，已经在下载列表中的URL跳过
      *
-     * @param url
+     * @param urls
+     * @return 实际添加的任务数
      */
-    public void pauseTask(String url)
+    public int addTasks(List<String> urls)
     {
-        for (int i = 0; i < mDownloadingTasks.size(); i++)
+        if (urls == null || urls.isEmpty() || !checkSDCard())
+        {
+            return 0;
+        }
+        int capacity = MAX_TASK_COUNT - getTotalTaskCount();
+        if (capacity < urls.size())
         {
-            DownloadTask task = mDownloadingTasks.get(i);
-            if (task != null && task.getUrl().equals(url))
+            ToastUtil.showToastShort(mContext, "任务列表已满");
+        }
+        List<TaskRegistry.Record<DownloadTask>> records = new ArrayList<>(Math.min(urls.size(), Math.max(capacity, 0)));
+        for (int i = 0; i < urls.size() && records.size() < capacity; i++)
+        {
+            String url = urls.get(i);
+            if (url == null || coalesce(url, PRIORITY_NORMAL, null, null, null, null))
             {
-                pauseTask(task);
-                break;
+                continue;
+            }
+            try
+            {
+                DownloadTask task = downloadTask(url);
+                TaskRegistry.Record<DownloadTask> record = mRegistry.add(task);
+                if (record != null)
+                {
+                    records.add(record);
+                    journalAdd(task);
+                    waitTask(task);
+                }
+            } catch (MalformedURLException e)
+            {
+                Log.e(TAG, e.getMessage(), e);
             }
         }
+        if (!records.isEmpty())
+        {
+            mTaskQueue.offerAll(records);
+            startIfNeeded();
+        }
+        return records.size();
     }
 
     /**
-     * 暂停任务
+     * 批量下载小文件（POI图片、地图瓦片），不进入下载列表，不写数据库和断点信息，几个连接依次请求所有文件；
+     * 文件保存到directory下和URL路径相同的位置，已经存在的文件跳过。
+     * 整个批次按返回的ID上报一个进度（完成的文件数百分比），单个文件失败时按文件的URL回调错误，
+     * 全部结束后按ID回调完成，取消时回调删除
      *
-     * @param task
+     * @param urls      文件URL列表
+     * @param directory 保存的目录
+     * @return 批次ID，SD卡不可用、目录为空或者列表中没有URL时返回null
      */
-    private void pauseTask(DownloadTask task)
+    public String addBulk(List<String> urls, String directory)
     {
-        if (task != null)
+        if (urls == null || TextUtils.isEmpty(directory) || !checkSDCard())
         {
-            task.pause();
-            String url = task.getUrl();
-            try
-            {
-                mDownloadingTasks.remove(task);
-                task = downloadTask(url);
-                mPausedTasks.add(task);
-            } catch (MalformedURLException e)
+            return null;
+        }
+        // 和addTasks一样跳过空的URL
+        List<String> files = new ArrayList<>(urls.size());
+        for (String url : urls)
+        {
+            if (!TextUtils.isEmpty(url))
             {
-                Logger.e(TAG, e.getMessage());
+                files.add(url);
             }
         }
+        if (files.isEmpty())
+        {
+            return null;
+        }
+        String id = BULK_ID_PREFIX + mBulkSequence.incrementAndGet();
+        BulkDownload bulk = new BulkDownload(id, mEngine, mDispatcher, files, new File(directory),
+                new BulkDownload.Listener()
+                {
+                    @Override
+                    public void onFileError(BulkDownload bulk, String url, String errorCode)
+                    {
+                        mDispatcher.onTaskEvent(DownloadIntents.Types.ERROR, url, errorCode);
+                    }
+
+                    @Override
+                    public void onFinished(BulkDownload bulk)
+                    {
+                        mBulks.remove(bulk.getUrl());
+                        Logger.d(TAG, bulk.getUrl() + " finished, " + bulk.getFailedCount() + " failed");
+                        mDispatcher.onTaskEvent(bulk.isCancelled() ? DownloadIntents.Types.DELETE
+                                : DownloadIntents.Types.COMPLETE, bulk.getUrl(), null);
+                    }
+                });
+        mBulks.put(id, bulk);
+        bulk.start(BulkDownload.DEFAULT_CONNECTIONS);
+        return id;
     }
 
     /**
-     * 删除下载任务
+     * 取消批量下载，正在下载的文件下载完后停止
      *
-     * @param url
+     * @param id addBulk返回的ID
      */
-    public void deleteTask(String url)
+    public void cancelBulk(String id)
     {
+        BulkDownload bulk = id != null ? mBulks.get(id) : null;
+        if (bulk != null)
+        {
+            bulk.cancel();
+        }
+    }
 
-        DownloadTask task;
-        // 如果是正在下载的任务删除了
-        for (int i = 0; i < mDownloadingTasks.size(); i++)
+    /**
+     * 恢复进程被杀掉之前没有完成的任务，在日志线程中读取，不阻塞调用线程；
+     * 等待和下载中的任务重新排队，暂停和出错的任务保持原来的状态，已经重新添加的URL跳过
+     */
+    public void restoreTasks()
+    {
+        mEngine.getQueueJournal().restore(new TaskQueueJournal.RestoreCallback()
         {
-            task = mDownloadingTasks.get(i);
-            if (task != null && task.getUrl().equals(url))
+            @Override
+            public void onRestored(List<TaskQueueJournal.Entry> entries)
             {
-                File file = new File(FileInfoUtils.FILE_ROOT + StringUtils.getFileNameFromUrl(task.getUrl()));
-                if (file.exists())
+                List<TaskRegistry.Record<DownloadTask>> records = new ArrayList<>();
+                for (TaskQueueJournal.Entry entry : entries)
                 {
-                    file.delete();
+                    if (mRegistry.get(entry.url) != null)
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        DownloadTask task = downloadTask(entry.url);
+                        if (entry.segmentCount > 0)
+                        {
+                            task.setSegmentCount(entry.segmentCount);
+                        }
+                        task.setPriority(entry.priority);
+                        if (entry.algorithm != null && entry.digest != null)
+                        {
+                            task.setExpectedDigest(entry.algorithm, entry.digest);
+                        }
+                        if (entry.extractDirectory != null)
+                        {
+                            task.setStage(new ZipExtractStage(new File(entry.extractDirectory)));
+                        }
+                        task.setDeltaManifest(entry.deltaManifestUrl);
+                        TaskRegistry.Record<DownloadTask> record = mRegistry.add(task);
+                        if (record == null)
+                        {
+                            continue;
+                        }
+                        if (entry.state == TaskQueueJournal.STATE_QUEUED)
+                        {
+                            records.add(record);
+                            waitTask(task);
+                        } else
+                        {
+                            synchronized (record)
+                            {
+                                record.transition(TaskRegistry.STATE_QUEUED,
+                                        entry.state == TaskQueueJournal.STATE_FAILED
+                                                ? TaskRegistry.STATE_FAILED : TaskRegistry.STATE_PAUSED);
+                            }
+                        }
+                    } catch (MalformedURLException e)
+                    {
+                        Log.e(TAG, e.getMessage(), e);
+                    }
+                }
+                Logger.d(TAG, "restored " + entries.size() + " tasks, " + records.size() + " queued");
+                if (!records.isEmpty())
+                {
+                    mTaskQueue.offerAll(records);
+                    startIfNeeded();
                 }
-                task.delete();
-                completeTask(task, DownloadIntents.Types.DELETE);
-                break;
             }
+        });
+    }
+
+    private synchronized void startIfNeeded()
+    {
+        if (!this.isAlive())
+        {
+            isRunning = true;
+            this.start();
         }
-        // 如果是待下载的任务删除了
-        for (int i = 0; i < mTaskQueue.size(); i++)
+    }
+
+    private void journalAdd(DownloadTask task)
+    {
+        DownloadStage stage = task.getStage();
+        String extractDirectory = stage instanceof ZipExtractStage
+                ? ((ZipExtractStage) stage).getDirectory().getPath() : null;
+        mEngine.getQueueJournal().add(task.getUrl(), task.getPriority(), task.getSegmentCount(),
+                task.getDigestAlgorithm(), task.getExpectedDigest(), extractDirectory, task.getDeltaManifest());
+    }
+
+    /**
+     * 暂停所有正在下载和等待下载的任务
+     */
+    public void pauseAll()
+    {
+        for (TaskRegistry.Record<DownloadTask> record : mRegistry.records())
         {
-            task = mTaskQueue.get(i);
-            if (task != null && task.getUrl().equals(url))
+            if (record.getState() == TaskRegistry.STATE_RUNNING)
             {
-                mTaskQueue.remove(task);
-                break;
+                pauseTask(record);
+            } else if (record.getState() == TaskRegistry.STATE_QUEUED)
+            {
+                // 还没开始的任务不需要换任务对象，队列中的条目出队时被跳过
+                synchronized (record)
+                {
+                    if (!record.transition(TaskRegistry.STATE_QUEUED, TaskRegistry.STATE_PAUSED))
+                    {
+                        continue;
+                    }
+                }
+                mEngine.getQueueJournal().updateState(record.url, TaskQueueJournal.STATE_PAUSED);
             }
         }
-        // 如果是暂停的任务删除了
-        for (int i = 0; i < mPausedTasks.size(); i++)
+    }
+
+    /**
+     * 继续下载所有暂停和出错的任务，一次入队
+     */
+    public void resumeAll()
+    {
+        List<TaskRegistry.Record<DownloadTask>> records = new ArrayList<>();
+        for (TaskRegistry.Record<DownloadTask> record : mRegistry.records())
         {
-            task = mPausedTasks.get(i);
-            if (task != null && task.getUrl().equals(url))
+            if (markContinued(record))
             {
-                mPausedTasks.remove(task);
-                break;
+                records.add(record);
             }
         }
+        if (!records.isEmpty())
+        {
+            mTaskQueue.offerAll(records);
+            startIfNeeded();
+        }
     }
 
     /**
-     * addTask到真正开始下载有个等待时间
+     * 批量删除任务
+     *
+     * @param urls
      */
-    private void waitTask(DownloadTask task)
+    public void deleteTasks(List<String> urls)
     {
-        Intent nofityIntent = new Intent(RECEIVER_ACTION);
-        nofityIntent.putExtra(DownloadIntents.TYPE, DownloadIntents.Types.WAIT);
-        nofityIntent.putExtra(DownloadIntents.URL, task.getUrl());
-        mContext.sendBroadcast(nofityIntent);
+        if (urls == null)
+        {
+            return;
+        }
+        for (int i = 0; i < urls.size(); i++)
+        {
+            deleteTask(urls.get(i));
+        }
     }
 
-    private void completeTask(DownloadTask task, int type)
+    /**
+     * 同一个URL已经在下载列表中时合并到原来的任务，不创建新的任务：
+     * 优先级更高时提升原来任务的优先级，暂停或者出错的任务继续下载，然后补发当前状态给新的调用者。
+     * 这次添加指定的摘要、后处理或者增量清单和原来的任务不一致时不合并，回调ERROR_CONFLICT
+     *
+     * @return 已经合并或者拒绝时返回true
+     */
+    private boolean coalesce(String url, int priority, String algorithm, String digest, DownloadStage stage,
+                             String deltaManifestUrl)
     {
-        if (mDownloadingTasks.contains(task))
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        if (record == null)
         {
-            mDownloadingTasks.remove(task);
-            Intent nofityIntent = new Intent(RECEIVER_ACTION);
-            nofityIntent.putExtra(DownloadIntents.TYPE, type);
-            nofityIntent.putExtra(DownloadIntents.URL, task.getUrl());
-            mContext.sendBroadcast(nofityIntent);
+            return false;
         }
+        final DownloadTask task = record.task;
+        int state = record.getState();
+        if (state == TaskRegistry.STATE_COMPLETED || state == TaskRegistry.STATE_REMOVED)
+        {
+            // 已经完成或者删除，重新添加
+            return false;
+        }
+        if (conflicts(task, algorithm, digest, stage, deltaManifestUrl))
+        {
+            Logger.d(TAG, "conflicting add " + url);
+            mDispatcher.onTaskEvent(DownloadIntents.Types.ERROR, url, ERROR_CONFLICT);
+            return true;
+        }
+        if (priority > task.getPriority())
+        {
+            setPriority(url, priority);
+        }
+        if (state == TaskRegistry.STATE_PAUSED || state == TaskRegistry.STATE_FAILED)
+        {
+            continueTask(record);
+        } else if (state == TaskRegistry.STATE_QUEUED)
+        {
+            waitTask(task);
+        } else
+        {
+            // 进度只能在进度线程中回调，这里可能是binder线程
+            mEngine.getProgressHandler().post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mDispatcher.onProgress(task);
+                }
+            });
+        }
+        Logger.d(TAG, "coalesce " + url);
+        return true;
     }
 
-    private void errorTask(DownloadTask task, Throwable error)
+    /**
+     * 这次添加指定了和原来的任务不同的参数，没有指定的参数不算冲突
+     */
+    private static boolean conflicts(DownloadTask task, String algorithm, String digest, DownloadStage stage,
+                                     String deltaManifestUrl)
     {
-        if (mDownloadingTasks.contains(task))
+        if (algorithm != null && digest != null && (!algorithm.equalsIgnoreCase(task.getDigestAlgorithm())
+                || !digest.equalsIgnoreCase(task.getExpectedDigest())))
         {
-            mDownloadingTasks.remove(task);
-            Intent errorIntent = new Intent(RECEIVER_ACTION);
-            errorIntent.putExtra(DownloadIntents.TYPE, DownloadIntents.Types.ERROR);
-            if (error != null)
-            {
-                errorIntent.putExtra(DownloadIntents.ERROR_INFO, error.getMessage());
-            }
-            errorIntent.putExtra(DownloadIntents.URL, task.getUrl());
-            mContext.sendBroadcast(errorIntent);
+            return true;
+        }
+        if (stage != null && !sameStage(stage, task.getStage()))
+        {
+            return true;
         }
+        return deltaManifestUrl != null && !deltaManifestUrl.equals(task.getDeltaManifest());
     }
 
-    public void continueTask(String url)
+    /**
+     * 解压到同一个目录的两个ZipExtractStage相同，其他后处理阶段只和自己相同
+     */
+    private static boolean sameStage(DownloadStage stage, DownloadStage other)
     {
-        for (int i = 0, length = mPausedTasks.size(); i < length; i++)
+        if (stage == other)
         {
-            DownloadTask task = mPausedTasks.get(i);
-            if (task != null && task.getUrl().equals(url))
-            {
-                continueTask(task);
-                break;
-            }
-
+            return true;
         }
+        if (stage instanceof ZipExtractStage && other instanceof ZipExtractStage)
+        {
+            File directory = ((ZipExtractStage) stage).getDirectory().getAbsoluteFile();
+            return directory.equals(((ZipExtractStage) other).getDirectory().getAbsoluteFile());
+        }
+        return false;
     }
 
-    private void continueTask(DownloadTask task)
+    /**
+     * 添加任务，同一个URL已经在下载列表中时不重复添加
+     *
+     * @param task 下载任务
+     */
+    private void addTask(DownloadTask task)
     {
-        if (task != null)
+        TaskRegistry.Record<DownloadTask> record = mRegistry.add(task);
+        if (record == null)
         {
-            mPausedTasks.remove(task);
-            mTaskQueue.offer(task);
+            Logger.d(TAG, "task already exists: " + task.getUrl());
+            return;
         }
+        journalAdd(task);
+        waitTask(task);
+        mTaskQueue.offer(record);
+
+        startIfNeeded();
+        preemptFor(task);
     }
 
-    private int getTotalTaskCount()
+    /**
+     * 修改任务优先级，等待中的任务会重新排队
+     *
+     * @param url
+     * @param priority
+     */
+    public void setPriority(String url, int priority)
     {
-        return mTaskQueue.size() + mDownloadingTasks.size() + mPausedTasks.size();
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        if (record == null)
+        {
+            return;
+        }
+        DownloadTask task = record.task;
+        task.setPriority(priority);
+        mEngine.getQueueJournal().updatePriority(url, priority);
+        if (record.getState() == TaskRegistry.STATE_QUEUED)
+        {
+            // 重新入队，原来的条目在出队时被跳过
+            mTaskQueue.offer(record);
+            preemptFor(task);
+        }
     }
 
-    class TaskQueue
+    /**
+     * 没有空闲的下载位置时，暂停优先级比task低的正在下载的任务中优先级最低的一个，
+     * 然后通过继续下载的流程让它重新排队
+     */
+    private void preemptFor(DownloadTask task)
     {
-
-        private Queue<DownloadTask> taskQueue;
-
-        public TaskQueue()
+        if (mRegistry.count(TaskRegistry.STATE_RUNNING) < mConcurrencyController.getLimit())
         {
-
-            taskQueue = new LinkedList<>();
+            return;
         }
-
-        public void offer(DownloadTask task)
+        // 只遍历正在下载的任务，数量不超过并发数
+        TaskRegistry.Record<DownloadTask> lowest = null;
+        for (TaskRegistry.Record<DownloadTask> running : mRegistry.running())
         {
-
-            taskQueue.offer(task);
+            if (lowest == null || running.task.getPriority() < lowest.task.getPriority())
+            {
+                lowest = running;
+            }
         }
-
-        public DownloadTask poll()
+        if (lowest != null && lowest.task.getPriority() < task.getPriority())
         {
-            DownloadTask task;
-            while (mDownloadingTasks.size() >= MAX_DOWNLOAD_THREAD_COUNT || (task = taskQueue.poll()) == null)
+            Logger.d(TAG, "preempt " + lowest.url + " for " + task.getUrl());
+            if (pauseTask(lowest))
             {
-                try
-                {
-                    Thread.sleep(1000); // sleep
-                } catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
+                continueTask(lowest);
+                waitTask(lowest.task);
             }
-            return task;
         }
+    }
 
-        public DownloadTask get(int position)
+    /**
+     * 暂停任务
+     *
+     * @param url
+     */
+    public void pauseTask(String url)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        if (record != null)
         {
+            pauseTask(record);
+        }
+    }
 
-            if (position >= size())
+    /**
+     * 暂停正在下载的任务，换成一个新的任务对象等待继续下载
+     *
+     * @return 任务不在下载中时返回false
+     */
+    private boolean pauseTask(TaskRegistry.Record<DownloadTask> record)
+    {
+        synchronized (record)
+        {
+            // 状态切换都在记录的锁里进行，检查之后不会再变
+            if (record.getState() != TaskRegistry.STATE_RUNNING)
+            {
+                return false;
+            }
+            DownloadTask task = record.task;
+            DownloadTask pausedTask;
+            try
+            {
+                pausedTask = downloadTask(record.url);
+            } catch (MalformedURLException e)
             {
-                return null;
+                Logger.e(TAG, e.getMessage());
+                return false;
             }
-            return ((LinkedList<DownloadTask>) taskQueue).get(position);
+            record.transition(TaskRegistry.STATE_RUNNING, TaskRegistry.STATE_PAUSED);
+            task.pause();
+            pausedTask.inheritSettings(task);
+            record.task = pausedTask;
         }
+        mEngine.getQueueJournal().updateState(record.url, TaskQueueJournal.STATE_PAUSED);
+        mTaskQueue.signalSlotFreed();
+        return true;
+    }
 
-        public int size()
+    /**
+     * 删除下载任务
+     *
+     * @param url
+     */
+    public void deleteTask(String url)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        if (record == null)
+        {
+            return;
+        }
+        DownloadTask task;
+        int state;
+        synchronized (record)
+        {
+            task = record.task;
+            // 等待中的任务在队列中的条目出队时被跳过
+            state = mRegistry.remove(record);
+        }
+        if (state != TaskRegistry.STATE_REMOVED)
+        {
+            mEngine.getQueueJournal().remove(url);
+        }
+        // 如果是正在下载的任务删除了
+        if (state == TaskRegistry.STATE_RUNNING)
         {
+            File file = new File(FileInfoUtils.FILE_ROOT + StringUtils.getFileNameFromUrl(task.getUrl()));
+            if (file.exists())
+            {
+                file.delete();
+            }
+            task.delete();
+            mTaskQueue.signalSlotFreed();
+            notifyTask(task, DownloadIntents.Types.DELETE);
+        }
+    }
+
+    /**
+     * addTask到真正开始下载有个等待时间
+     */
+    private void waitTask(DownloadTask task)
+    {
+        mDispatcher.onTaskEvent(DownloadIntents.Types.WAIT, task.getUrl(), null);
+    }
 
-            return taskQueue.size();
+    private void notifyTask(DownloadTask task, int type)
+    {
+        mDispatcher.onTaskEvent(type, task.getUrl(), null);
+    }
+
+    private void completeTask(DownloadTask task)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(task.getUrl());
+        if (record == null)
+        {
+            return;
         }
+        synchronized (record)
+        {
+            // 暂停或删除后旧的任务对象结束时不处理
+            if (record.task != task || !record.transition(TaskRegistry.STATE_RUNNING, TaskRegistry.STATE_COMPLETED))
+            {
+                return;
+            }
+            mRegistry.remove(record);
+        }
+        mEngine.getQueueJournal().remove(record.url);
+        if (record.recovering)
+        {
+            mEngine.getMetrics().recordRecovery();
+        }
+        mTaskQueue.signalSlotFreed();
+        notifyTask(task, DownloadIntents.Types.COMPLETE);
+    }
 
-        public boolean remove(int position)
+    private void errorTask(DownloadTask task, Throwable error)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(task.getUrl());
+        if (record == null)
+        {
+            return;
+        }
+        synchronized (record)
         {
+            // 暂停或删除后旧的任务对象结束时不处理
+            if (record.task != task || record.getState() != TaskRegistry.STATE_RUNNING)
+            {
+                return;
+            }
+            DownloadTask failedTask;
+            try
+            {
+                failedTask = downloadTask(record.url);
+            } catch (MalformedURLException e)
+            {
+                Logger.e(TAG, e.getMessage());
+                return;
+            }
+            record.transition(TaskRegistry.STATE_RUNNING, TaskRegistry.STATE_FAILED);
+            // 换成新的任务对象，continueTask可以重新下载
+            failedTask.inheritSettings(task);
+            record.task = failedTask;
+        }
+        mEngine.getQueueJournal().updateState(record.url, TaskQueueJournal.STATE_FAILED);
+        mTaskQueue.signalSlotFreed();
+        mDispatcher.onTaskEvent(DownloadIntents.Types.ERROR, task.getUrl(), error != null ? error.getMessage() : null);
+    }
 
-            return taskQueue.remove(get(position));
+    /**
+     * 继续下载暂停或者出错的任务
+     *
+     * @param url
+     */
+    public void continueTask(String url)
+    {
+        TaskRegistry.Record<DownloadTask> record = mRegistry.get(url);
+        if (record != null)
+        {
+            continueTask(record);
         }
+    }
 
-        public boolean remove(DownloadTask task)
+    private void continueTask(TaskRegistry.Record<DownloadTask> record)
+    {
+        if (markContinued(record))
         {
+            mTaskQueue.offer(record);
+            // 恢复的任务都是暂停或者出错时控制线程还没有启动
+            startIfNeeded();
+        }
+    }
 
-            return taskQueue.remove(task);
+    /**
+     * 暂停或者出错的任务切换为等待下载，调用者负责入队
+     *
+     * @return 任务不是暂停或者出错状态时返回false
+     */
+    private boolean markContinued(TaskRegistry.Record<DownloadTask> record)
+    {
+        synchronized (record)
+        {
+            if (record.transition(TaskRegistry.STATE_FAILED, TaskRegistry.STATE_QUEUED))
+            {
+                record.recovering = true;
+            } else if (!record.transition(TaskRegistry.STATE_PAUSED, TaskRegistry.STATE_QUEUED))
+            {
+                return false;
+            }
+            record.queuedNanos = System.nanoTime();
+            record.task.markResumeRequested();
         }
+        mEngine.getQueueJournal().updateState(record.url, TaskQueueJournal.STATE_QUEUED);
+        return true;
     }
 
+    private int getTotalTaskCount()
+    {
+        return mRegistry.activeCount();
+    }
 }
@@ -0,0 +1,255 @@
+package com.handsmap.util.download;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.handsmap.nsstour.manager.DataAccessManager;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载引擎，DownloadControl持有，所有的下载任务共用
+ * <p/>
+ * 下载任务在自己的线程池中执行，不再使用AsyncTask默认的串行线程池，线程池大小就是同时下载的任务数；
+ * 下载进度在单独的进度线程中分发，不占用UI线程；下载状态通过DownloadStateJournal延迟批量写入数据库；
+ * 所有HTTP请求共用一个DownloadConnectionPool；分段下载和批量下载的工作线程也由引擎统一提供
+ *
+ * @author DaHui
+ */
+class DownloadEngine
+{
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    //分段下载和批量下载的工作线程，空闲的线程在任务之间复用
+    private final ThreadPoolExecutor mWorkerExecutor;
+    private final HandlerThread mProgressThread;
+    private final Handler mProgressHandler;
+    private final DownloadStateJournal mStateJournal;
+    //下载队列的追加日志，Service重新创建时恢复任务
+    private final TaskQueueJournal mQueueJournal;
+    private final DownloadConnectionPool mConnectionPool;
+    private final BandwidthGovernor mBandwidthGovernor = new BandwidthGovernor();
+    private final DownloadMetrics mMetrics = new DownloadMetrics();
+    private final StorageLedger mStorageLedger = new StorageLedger();
+    //已经下载完成的文件按摘要建立的索引，内容相同的任务直接复用
+    private final ContentIndex mContentIndex;
+    private ConcurrencyController mConcurrencyController;
+    //所有任务下载的总字节数，只在进度线程中访问
+    private long mTransferredBytes;
+    //进度上报间隔和最小字节数，对之后创建的任务生效
+    private volatile long mProgressIntervalMillis = ProgressReporter.DEFAULT_INTERVAL_MILLIS;
+    private volatile long mProgressMinBytes = ProgressReporter.DEFAULT_MIN_BYTES;
+    //写文件方式和缓冲区大小，对之后开始的任务生效
+    private volatile int mWriteMode = DownloadControl.WRITE_MODE_CHANNEL;
+    private volatile int mBufferSize = DownloadControl.DEFAULT_BUFFER_SIZE;
+
+    DownloadEngine(Context context, int parallelism)
+    {
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory("DownloadTask"));
+        mExecutor.allowCoreThreadTimeOut(true);
+        // 不能和任务共用mExecutor：任务线程等分段完成，线程都被任务占满时排队的分段永远不会执行；
+        // 同时运行的工作线程数由每个任务的分段数、批量下载的连接数和每个主机的连接数限制
+        mWorkerExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), newThreadFactory("DownloadWorker"));
+        mProgressThread = new HandlerThread("DownloadProgress", Process.THREAD_PRIORITY_BACKGROUND);
+        mProgressThread.start();
+        mProgressHandler = new Handler(mProgressThread.getLooper());
+        mStateJournal = new DownloadStateJournal(DataAccessManager.getInstance(context));
+        mQueueJournal = new TaskQueueJournal(new File(context.getFilesDir(), TaskQueueJournal.FILE_NAME));
+        mContentIndex = new ContentIndex(new File(context.getFilesDir(), ContentIndex.FILE_NAME));
+        mConnectionPool = new DownloadConnectionPool(mProgressHandler, mMetrics);
+    }
+
+    /**
+     * 创建带名字的后台线程，方便在traces中区分下载线程
+     *
+     * @param name 线程名前缀
+     */
+    static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                return new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + " #" + mCount.getAndIncrement());
+            }
+        };
+    }
+
+    Executor getExecutor()
+    {
+        return mExecutor;
+    }
+
+    /**
+     * 分段下载和批量下载使用的线程池，调用方不能关闭
+     */
+    ExecutorService getWorkerExecutor()
+    {
+        return mWorkerExecutor;
+    }
+
+    /**
+     * 下载进度分发线程的Handler
+     */
+    Handler getProgressHandler()
+    {
+        return mProgressHandler;
+    }
+
+    DownloadConnectionPool getConnectionPool()
+    {
+        return mConnectionPool;
+    }
+
+    StorageLedger getStorageLedger()
+    {
+        return mStorageLedger;
+    }
+
+    DownloadMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+    BandwidthGovernor getBandwidthGovernor()
+    {
+        return mBandwidthGovernor;
+    }
+
+    TaskQueueJournal getQueueJournal()
+    {
+        return mQueueJournal;
+    }
+
+    ContentIndex getContentIndex()
+    {
+        return mContentIndex;
+    }
+
+    DownloadStateJournal getStateJournal()
+    {
+        return mStateJournal;
+    }
+
+    /**
+     * 创建在进度线程中上报的进度合并器
+     */
+    ProgressReporter newProgressReporter(ProgressReporter.Callback callback)
+    {
+        return new ProgressReporter(this, mProgressHandler, mProgressIntervalMillis, mProgressMinBytes, callback);
+    }
+
+    /**
+     * 创建自适应并发控制，DownloadControl创建时调用一次
+     */
+    ConcurrencyController startConcurrencyController(ConcurrencyController.Listener listener)
+    {
+        mConcurrencyController = new ConcurrencyController(mProgressHandler, this, getParallelism(), listener);
+        return mConcurrencyController;
+    }
+
+    /**
+     * 进度线程中累加下载量，用来计算总的下载速度
+     */
+    void addTransferredBytes(long bytes)
+    {
+        mTransferredBytes += bytes;
+    }
+
+    long getTransferredBytes()
+    {
+        return mTransferredBytes;
+    }
+
+    /**
+     * 设置进度上报的频率，间隔时间内下载量不足最小字节数时不上报
+     *
+     * @param intervalMillis 上报间隔
+     * @param minBytes       两次上报之间最少下载的字节数
+     */
+    void setProgressThresholds(long intervalMillis, long minBytes)
+    {
+        mProgressIntervalMillis = intervalMillis;
+        mProgressMinBytes = minBytes;
+    }
+
+    void setWriteMode(int mode)
+    {
+        mWriteMode = mode;
+    }
+
+    int getWriteMode()
+    {
+        return mWriteMode;
+    }
+
+    void setBufferSize(int bufferSize)
+    {
+        mBufferSize = bufferSize;
+    }
+
+    int getBufferSize()
+    {
+        return mBufferSize;
+    }
+
+    /**
+     * 修改同时下载的任务数，正在执行的任务不受影响
+     */
+    void setParallelism(int parallelism)
+    {
+        if (parallelism > mExecutor.getMaximumPoolSize())
+        {
+            mExecutor.setMaximumPoolSize(parallelism);
+            mExecutor.setCorePoolSize(parallelism);
+        } else
+        {
+            mExecutor.setCorePoolSize(parallelism);
+            mExecutor.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    int getParallelism()
+    {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    void shutdown()
+    {
+        mExecutor.shutdown();
+        mWorkerExecutor.shutdown();
+        if (mConcurrencyController != null)
+        {
+            mConcurrencyController.shutdown();
+        }
+        mProgressThread.quit();
+        mStateJournal.shutdown();
+        mQueueJournal.shutdown();
+        mConnectionPool.shutdown();
+    }
+}
@@ -0,0 +1,160 @@
+package com.handsmap.util.download;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 下载事件分发，在进度线程中执行
+ * <p/>
+ * 进度按帧合并：一帧内同一个任务只保留最后一次，帧结束时所有变化的任务一次回调；
+ * 状态事件先补发还没发出的进度再回调，保证顺序。广播只作为兼容选项，默认关闭
+ *
+ * @author DaHui
+ */
+class DownloadEventDispatcher
+{
+
+    //合并进度的帧间隔
+    static final long FRAME_MILLIS = 100;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private volatile DownloadEventListener mListener;
+    //兼容旧的广播接收者
+    private volatile boolean mBroadcastEnabled = false;
+    //这一帧中进度有变化的任务，只在进度线程中访问
+    private final Map<String, Progress> mDirty = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    /**
+     * 按帧合并上报的进度：下载任务或者批量下载
+     */
+    interface Progress
+    {
+        public String getUrl();
+
+        public long getDownloadPercent();
+
+        public long getDownloadSpeed();
+
+        public long getRemainingTime();
+    }
+
+    DownloadEventDispatcher(Context context, Handler handler)
+    {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    void setListener(DownloadEventListener listener)
+    {
+        mListener = listener;
+    }
+
+    void setBroadcastEnabled(boolean enabled)
+    {
+        mBroadcastEnabled = enabled;
+    }
+
+    /**
+     * 任务进度变化，在进度线程中调用
+     */
+    void onProgress(Progress progress)
+    {
+        mDirty.put(progress.getUrl(), progress);
+        if (!mFlushScheduled)
+        {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FRAME_MILLIS);
+        }
+    }
+
+    /**
+     * 任务状态变化，任意线程可以调用
+     */
+    void onTaskEvent(final int type, final String url, final String errorInfo)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flush();
+                DownloadEventListener listener = mListener;
+                if (listener != null)
+                {
+                    listener.onTaskEvent(type, url, errorInfo);
+                }
+                if (mBroadcastEnabled)
+                {
+                    Intent intent = new Intent(DownloadControl.RECEIVER_ACTION);
+                    intent.putExtra(DownloadIntents.TYPE, type);
+                    if (errorInfo != null)
+                    {
+                        intent.putExtra(DownloadIntents.ERROR_INFO, errorInfo);
+                    }
+                    intent.putExtra(DownloadIntents.URL, url);
+                    mContext.sendBroadcast(intent);
+                }
+            }
+        });
+    }
+
+    private void flush()
+    {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        int count = mDirty.size();
+        if (count == 0)
+        {
+            return;
+        }
+        String[] urls = new String[count];
+        int[] percents = new int[count];
+        long[] speeds = new long[count];
+        long[] remainingTimes = new long[count];
+        Iterator<Progress> iterator = mDirty.values().iterator();
+        for (int i = 0; i < count; i++)
+        {
+            Progress progress = iterator.next();
+            urls[i] = progress.getUrl();
+            percents[i] = (int) progress.getDownloadPercent();
+            speeds[i] = progress.getDownloadSpeed();
+            remainingTimes[i] = progress.getRemainingTime();
+        }
+        mDirty.clear();
+        DownloadEventListener listener = mListener;
+        if (listener != null)
+        {
+            listener.onProgress(urls, percents, speeds, remainingTimes);
+        }
+        if (mBroadcastEnabled)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                Intent intent = new Intent(DownloadControl.RECEIVER_ACTION);
+                intent.putExtra(DownloadIntents.TYPE, DownloadIntents.Types.PROCESS);
+                intent.putExtra(DownloadIntents.PROCESS_PROGRESS, String.valueOf(percents[i]));
+                // 字节/秒和毫秒，剩余时间未知时为-1
+                intent.putExtra(DownloadIntents.PROCESS_SPEED, String.valueOf(speeds[i]));
+                intent.putExtra(DownloadIntents.PROCESS_ETA, String.valueOf(remainingTimes[i]));
+                intent.putExtra(DownloadIntents.URL, urls[i]);
+                mContext.sendBroadcast(intent);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.handsmap.util.download;
+
+/**
+ * 下载事件监听，同一进程内直接回调，不经过广播
+ * <p/>
+ * 在下载引擎的进度线程中回调，不要做耗时操作，更新界面需要切换到主线程
+ *
+ * @author DaHui
+ */
+public interface DownloadEventListener
+{
+    /**
+     * 一帧内进度有变化的所有任务，数组长度相同，下标对应同一个任务
+     *
+     * @param urls           任务URL
+     * @param percents       下载百分比
+     * @param speeds         下载速度，字节/秒
+     * @param remainingTimes 剩余时间，毫秒，未知时为-1
+     */
+    public void onProgress(String[] urls, int[] percents, long[] speeds, long[] remainingTimes);
+
+    /**
+     * 任务状态变化
+     *
+     * @param type      DownloadIntents.Types中的WAIT、COMPLETE、DELETE、ERROR
+     * @param url       任务URL
+     * @param errorInfo 出错时的错误信息，其他情况为null
+     */
+    public void onTaskEvent(int type, String url, String errorInfo);
+}
@@ -11,6 +11,7 @@ public class DownloadIntents
     public static final String TYPE = "type";
     public static final String PROCESS_SPEED = "process_speed";
     public static final String PROCESS_PROGRESS = "process_progress";
+    public static final String PROCESS_ETA = "process_eta";
     public static final String URL = "url";
     public static final String ERROR_CODE = "error_code";
     public static final String ERROR_INFO = "error_info";
@@ -5,9 +5,12 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 
+import com.handsmap.nsstour.IDownloadCallback;
 import com.handsmap.nsstour.IDownloadService;
 import com.handsmap.nsstour.manager.BaseManager;
 import com.handsmap.nsstour.manager.DataAccessManager;
@@ -15,6 +18,8 @@ import com.handsmap.util.Logger;
 import com.handsmap.util.download.DownloadControl;
 import com.handsmap.util.download.DownloadIntents;
 
+import java.util.List;
+
 /**
  * 文件下载控制类
  *
@@ -30,6 +35,39 @@ public class DownloadManager extends BaseManager
     private IDownloadService mService;
     private static DownloadManager mManager;
     private DownloadListener downloadListener;
+    //下载事件在进度线程或者Binder线程中回调，切换到主线程通知downloadListener
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final IDownloadCallback mCallback = new IDownloadCallback.Stub()
+    {
+        @Override
+        public void onProgress(final String[] urls, final int[] percents, long[] speeds, long[] remainingTimes)
+        {
+            mMainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < urls.length; i++)
+                    {
+                        downloadListener.updateProgress(urls[i], String.valueOf(percents[i]));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onTaskEvent(final int type, final String url, final String errorInfo)
+        {
+            mMainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    dispatchEvent(type, url, errorInfo);
+                }
+            });
+        }
+    };
 
     private Intent intent;
 
@@ -83,6 +121,13 @@ public class DownloadManager extends BaseManager
             {
                 //服务连接上
                 mService = IDownloadService.Stub.asInterface(service);
+                try
+                {
+                    mService.registerCallback(mCallback);
+                } catch (RemoteException e)
+                {
+                    Logger.e(TAG, e.getMessage());
+                }
             }
         };
         mContext.bindService(intent, mConn, Context.BIND_AUTO_CREATE);
@@ -93,6 +138,16 @@ public class DownloadManager extends BaseManager
      */
     public void disConnectService()
     {
+        if (mService != null)
+        {
+            try
+            {
+                mService.unregisterCallback(mCallback);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
         mContext.unbindService(mConn);
     }
 
@@ -180,6 +235,317 @@ public class DownloadManager extends BaseManager
         }
     }
 
+    /**
+     * 添加指定优先级的任务
+     *
+     * @param url
+     * @param priority DownloadControl.PRIORITY_LOW、PRIORITY_NORMAL、PRIORITY_HIGH
+     */
+    public void addTaskWithPriority(String url, int priority)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.addTaskWithPriority(url, priority);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 修改任务优先级
+     *
+     * @param url
+     * @param priority
+     */
+    public void setPriority(String url, int priority)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.setPriority(url, priority);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 设置所有下载任务总的限速
+     *
+     * @param bytesPerSecond 字节/秒，小于等于0时不限速
+     */
+    public void setGlobalBandwidthLimit(long bytesPerSecond)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.setGlobalBandwidthLimit(bytesPerSecond);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 设置单个任务的限速
+     *
+     * @param url
+     * @param bytesPerSecond 字节/秒，小于等于0时不限速
+     */
+    public void setTaskBandwidthLimit(String url, long bytesPerSecond)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.setTaskBandwidthLimit(url, bytesPerSecond);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 设置前台任务预留的带宽
+     *
+     * @param percent 占全局限速的百分比，0-100
+     */
+    public void setForegroundBandwidthReserve(int percent)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.setForegroundBandwidthReserve(percent);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 添加任务，下载完成时校验文件摘要，不一致时回调下载错误
+     *
+     * @param url       URL
+     * @param algorithm 摘要算法，MD5、SHA-256等
+     * @param digest    期望的摘要，十六进制字符串
+     */
+    public void addTaskWithDigest(String url, String algorithm, String digest)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.addTaskWithDigest(url, algorithm, digest);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 添加zip压缩包下载任务，边下载边解压，解压失败时回调下载错误
+     *
+     * @param url       URL
+     * @param directory 解压到的目录
+     */
+    public void addTaskAndExtract(String url, String directory)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.addTaskAndExtract(url, directory);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 添加增量更新任务，本地有旧版本的文件时只下载变化的块
+     *
+     * @param url         URL
+     * @param manifestUrl 块校验清单的地址，为null时使用url加上".blocks"
+     */
+    public void addTaskWithDelta(String url, String manifestUrl)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.addTaskWithDelta(url, manifestUrl);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 批量下载小文件，不进入下载列表；整个批次按返回的ID回调进度和完成，单个文件失败时按文件的URL回调错误
+     *
+     * @param urls      文件URL列表
+     * @param directory 保存的目录，文件按URL中的路径保存
+     * @return 批次ID，服务没有连接时返回null
+     */
+    public String addBulk(List<String> urls, String directory)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                return mService.addBulk(urls, directory);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 取消批量下载
+     *
+     * @param id addBulk返回的ID
+     */
+    public void cancelBulk(String id)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.cancelBulk(id);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 批量添加任务，一次跨进程调用
+     *
+     * @param urls URL列表
+     * @return 实际添加的任务数，服务没有连接时返回0
+     */
+    public int addTasks(List<String> urls)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                return mService.addTasks(urls);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 暂停所有任务
+     */
+    public void pauseAll()
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.pauseAll();
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 继续下载所有暂停和出错的任务
+     */
+    public void resumeAll()
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.resumeAll();
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 批量删除任务
+     *
+     * @param urls URL列表
+     */
+    public void deleteTasks(List<String> urls)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.deleteTasks(urls);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 是否同时发送下载广播，只有还在使用DownloadReceiver的客户端需要打开
+     */
+    public void setBroadcastEnabled(boolean enabled)
+    {
+        if (mService != null)
+        {
+            try
+            {
+                mService.setBroadcastEnabled(enabled);
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 导出下载统计，用来分析下载慢的原因
+     *
+     * @return 服务没有连接时返回null
+     */
+    public String dumpMetrics()
+    {
+        if (mService != null)
+        {
+            try
+            {
+                return mService.dumpMetrics();
+            } catch (RemoteException e)
+            {
+                Logger.e(TAG, e.getMessage());
+            }
+        }
+        return null;
+    }
+
     /**
      * 获取任务的状态
      *
@@ -192,8 +558,30 @@ public class DownloadManager extends BaseManager
     }
 
     /**
-     * 下载广播接收器
-     * 在Service中去注册广播，保证接收后台消息，Service停止时注销广播
+     * 把状态事件转给downloadListener，在主线程中调用
+     */
+    private void dispatchEvent(int type, String url, String errorInfo)
+    {
+        switch (type)
+        {
+            case DownloadIntents.Types.WAIT:
+                //下载之前的等待
+                downloadListener.downLoadWait(url);
+                break;
+            case DownloadIntents.Types.COMPLETE:
+                //下载完成
+                downloadListener.downLoadComplete(url);
+                break;
+            case DownloadIntents.Types.ERROR:
+                //下载错误
+                downloadListener.downLoadError(url, errorInfo);
+                break;
+        }
+    }
+
+    /**
+     * 下载广播接收器，兼容使用广播的客户端，需要调用setBroadcastEnabled(true)打开广播；
+     * DownloadManager自己通过IDownloadCallback接收事件，不需要注册这个接收器
      */
     public class DownloadReceiver extends BroadcastReceiver
     {
@@ -208,26 +596,15 @@ public class DownloadManager extends BaseManager
             if (intent != null && intent.getAction().equals(DownloadControl.RECEIVER_ACTION))
             {
                 String url = intent.getStringExtra(DownloadIntents.URL);
-                switch (intent.getIntExtra(DownloadIntents.TYPE, -1))
+                int type = intent.getIntExtra(DownloadIntents.TYPE, -1);
+                if (type == DownloadIntents.Types.PROCESS)
+                {
+                    //正在下载，更新下载进度
+                    String progress = intent.getStringExtra(DownloadIntents.PROCESS_PROGRESS);
+                    downloadListener.updateProgress(url, progress);
+                } else
                 {
-                    case DownloadIntents.Types.WAIT:
-                        //下载之前的等待
-                        downloadListener.downLoadWait(url);
-                        break;
-                    case DownloadIntents.Types.PROCESS:
-                        //正在下载，更新下载进度
-                        String progress = intent.getStringExtra(DownloadIntents.PROCESS_PROGRESS);
-                        downloadListener.updateProgress(url, progress);
-                        break;
-                    case DownloadIntents.Types.COMPLETE:
-                        //下载完成
-                        downloadListener.downLoadComplete(url);
-                        break;
-                    case DownloadIntents.Types.ERROR:
-                        //下载错误
-                        String errorMsg = intent.getStringExtra(DownloadIntents.ERROR_INFO);
-                        downloadListener.downLoadError(url, errorMsg);
-                        break;
+                    dispatchEvent(type, url, intent.getStringExtra(DownloadIntents.ERROR_INFO));
                 }
             }
         }
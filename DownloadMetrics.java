@@ -0,0 +1,268 @@
+package com.handsmap.util.download;
+
+import android.accounts.NetworkErrorException;
+
+import com.handsmap.exception.DownloadException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 下载统计：每次请求的DNS、建立连接（包括TLS握手）、首字节耗时，每个任务的网络吞吐量和写文件吞吐量，
+ * 以及按错误码统计的出错次数；调度方面统计排队等待、调度、暂停和继续下载的延迟，以及出错后重新下载成功的次数
+ * <p/>
+ * 直方图按2的幂分桶，记录时只做原子加法，不分配内存；导出时才计算百分位
+ *
+ * @author DaHui
+ */
+class DownloadMetrics
+{
+
+    //HttpContext中保存本次请求耗时的属性名
+    static final String ATTR_REQUEST_TIMING = "com.handsmap.download.request_timing";
+    private static final String[] ERROR_CODES = {
+            DownloadControl.ERROR_FILE_EXIST,
+            DownloadControl.ERROR_URL,
+            DownloadControl.ERROR_NOMEMORY,
+            DownloadControl.ERROR_DOWNLOAD_INTERRUPT,
+            DownloadControl.ERROR_DIGEST,
+            DownloadControl.ERROR_STAGE};
+    //网络不可用
+    private static final int ERROR_NETWORK = ERROR_CODES.length;
+    //其他IO错误
+    private static final int ERROR_IO = ERROR_CODES.length + 1;
+
+    private final Histogram mDnsMillis = new Histogram();
+    private final Histogram mConnectMillis = new Histogram();
+    private final Histogram mFirstByteMillis = new Histogram();
+    //每个任务的网络吞吐量，字节/秒
+    private final Histogram mNetworkThroughput = new Histogram();
+    //每个任务的写文件吞吐量，字节/秒
+    private final Histogram mDiskThroughput = new Histogram();
+    //加入队列（或者继续下载）到开始下载
+    private final Histogram mQueueWaitMillis = new Histogram();
+    //任务可以开始（入队时有空位，或者空出了位置）到控制线程开始下载，微秒
+    private final Histogram mDispatchMicros = new Histogram();
+    //请求暂停到停止传输
+    private final Histogram mPauseMillis = new Histogram();
+    //请求继续下载到收到响应头
+    private final Histogram mResumeMillis = new Histogram();
+    //出错后继续下载并且完成的任务数
+    private final AtomicLong mRecovered = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mTasks = new AtomicLong();
+    private final AtomicLongArray mErrors = new AtomicLongArray(ERROR_CODES.length + 2);
+
+    /**
+     * 一次请求的耗时，同一个请求只在一个线程中使用
+     */
+    static final class RequestTiming
+    {
+        //复用连接时为0
+        long dnsNanos;
+        long connectNanos;
+    }
+
+    /**
+     * 一个任务各阶段的累计耗时，分段下载时多个线程同时累加
+     */
+    static final class TaskTiming
+    {
+        final AtomicLong dnsNanos = new AtomicLong();
+        final AtomicLong connectNanos = new AtomicLong();
+        final AtomicLong firstByteNanos = new AtomicLong();
+        //从网络读取数据的时间，不包括写文件和限速等待
+        final AtomicLong transferNanos = new AtomicLong();
+    }
+
+    /**
+     * 按2的幂分桶的直方图，桶i记录[2^(i-1), 2^i)之间的值
+     */
+    static final class Histogram
+    {
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(65);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+
+        void record(long value)
+        {
+            if (value < 0)
+            {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+        }
+
+        long getCount()
+        {
+            return mCount.get();
+        }
+
+        long getAverage()
+        {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / count;
+        }
+
+        /**
+         * @param percent 0-100
+         * @return 所在桶的上界，没有记录时返回0
+         */
+        long percentile(int percent)
+        {
+            long count = mCount.get();
+            if (count == 0)
+            {
+                return 0;
+            }
+            long target = Math.max(1, (count * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length(); i++)
+            {
+                seen += mBuckets.get(i);
+                if (seen >= target)
+                {
+                    return i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void dump(StringBuilder sb, String name, String unit)
+        {
+            sb.append(name).append(": count=").append(getCount())
+                    .append(", avg=").append(getAverage()).append(unit)
+                    .append(", p50<=").append(percentile(50)).append(unit)
+                    .append(", p90<=").append(percentile(90)).append(unit)
+                    .append(", p99<=").append(percentile(99)).append(unit)
+                    .append('\n');
+        }
+    }
+
+    /**
+     * 一次请求收到响应头后调用
+     *
+     * @param firstByteNanos 发出请求到收到响应头的时间，不包括DNS和建立连接
+     * @param task           请求所属的任务，可以为null
+     */
+    void recordRequest(RequestTiming timing, long firstByteNanos, TaskTiming task)
+    {
+        if (timing.connectNanos > 0)
+        {
+            mDnsMillis.record(TimeUnit.NANOSECONDS.toMillis(timing.dnsNanos));
+            mConnectMillis.record(TimeUnit.NANOSECONDS.toMillis(timing.connectNanos));
+        }
+        mFirstByteMillis.record(TimeUnit.NANOSECONDS.toMillis(firstByteNanos));
+        if (task != null)
+        {
+            task.dnsNanos.addAndGet(timing.dnsNanos);
+            task.connectNanos.addAndGet(timing.connectNanos);
+            task.firstByteNanos.addAndGet(firstByteNanos);
+        }
+    }
+
+    /**
+     * 任务结束（包括暂停和出错）时调用
+     *
+     * @param bytes     本次下载的大小
+     * @param diskBytes 写入文件的大小
+     * @param diskNanos 写文件的时间
+     */
+    void recordTask(TaskTiming task, long bytes, long diskBytes, long diskNanos)
+    {
+        mTasks.incrementAndGet();
+        mBytes.addAndGet(bytes);
+        long transferNanos = task.transferNanos.get();
+        if (bytes > 0 && transferNanos > 0)
+        {
+            mNetworkThroughput.record(bytes * 1000000000L / transferNanos);
+        }
+        if (diskBytes > 0 && diskNanos > 0)
+        {
+            mDiskThroughput.record(diskBytes * 1000000000L / diskNanos);
+        }
+    }
+
+    void recordQueueWait(long nanos)
+    {
+        mQueueWaitMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    void recordDispatch(long nanos)
+    {
+        mDispatchMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    void recordPause(long nanos)
+    {
+        mPauseMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    void recordResume(long nanos)
+    {
+        mResumeMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    void recordRecovery()
+    {
+        mRecovered.incrementAndGet();
+    }
+
+    void recordError(Throwable error)
+    {
+        int index = ERROR_IO;
+        if (error instanceof DownloadException)
+        {
+            for (int i = 0; i < ERROR_CODES.length; i++)
+            {
+                if (ERROR_CODES[i].equals(error.getMessage()))
+                {
+                    index = i;
+                    break;
+                }
+            }
+        } else if (error instanceof NetworkErrorException)
+        {
+            index = ERROR_NETWORK;
+        }
+        mErrors.incrementAndGet(index);
+    }
+
+    void dump(StringBuilder sb)
+    {
+        sb.append("tasks=").append(mTasks.get()).append(", bytes=").append(mBytes.get()).append('\n');
+        mDnsMillis.dump(sb, "dns", "ms");
+        mConnectMillis.dump(sb, "connect", "ms");
+        mFirstByteMillis.dump(sb, "ttfb", "ms");
+        mNetworkThroughput.dump(sb, "network", "B/s");
+        mDiskThroughput.dump(sb, "disk", "B/s");
+        sb.append("errors:");
+        for (int i = 0; i < ERROR_CODES.length; i++)
+        {
+            sb.append(' ').append(ERROR_CODES[i]).append('=').append(mErrors.get(i));
+        }
+        sb.append(" network=").append(mErrors.get(ERROR_NETWORK));
+        sb.append(" io=").append(mErrors.get(ERROR_IO)).append(", recovered=").append(mRecovered.get()).append('\n');
+        mQueueWaitMillis.dump(sb, "queue_wait", "ms");
+        mDispatchMicros.dump(sb, "dispatch", "us");
+        mPauseMillis.dump(sb, "pause", "ms");
+        mResumeMillis.dump(sb, "resume", "ms");
+    }
+
+    /**
+     * 单个任务的各阶段耗时
+     */
+    static void dump(StringBuilder sb, TaskTiming task, long diskNanos)
+    {
+        sb.append("dns=").append(TimeUnit.NANOSECONDS.toMillis(task.dnsNanos.get()))
+                .append("ms, connect=").append(TimeUnit.NANOSECONDS.toMillis(task.connectNanos.get()))
+                .append("ms, ttfb=").append(TimeUnit.NANOSECONDS.toMillis(task.firstByteNanos.get()))
+                .append("ms, transfer=").append(TimeUnit.NANOSECONDS.toMillis(task.transferNanos.get()))
+                .append("ms, disk=").append(TimeUnit.NANOSECONDS.toMillis(diskNanos))
+                .append("ms");
+    }
+}
@@ -0,0 +1,42 @@
+package com.handsmap.util.download;
+
+/**
+ * 分段下载中的一个字节区间，[start, end] 均为闭区间
+ *
+ * @author DaHui
+ */
+class DownloadSegment
+{
+
+    //区间起始位置
+    final long start;
+    //区间结束位置（包含）
+    final long end;
+    //该区间已经下载的字节数，由下载线程更新
+    volatile long downloaded;
+
+    DownloadSegment(long start, long end, long downloaded)
+    {
+        this.start = start;
+        this.end = end;
+        this.downloaded = downloaded;
+    }
+
+    /**
+     * 下一个需要下载的字节位置
+     */
+    long position()
+    {
+        return start + downloaded;
+    }
+
+    long length()
+    {
+        return end - start + 1;
+    }
+
+    boolean isComplete()
+    {
+        return downloaded >= length();
+    }
+}
@@ -2,13 +2,15 @@ package com.handsmap.util.download;
 
 import android.app.Service;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.IBinder;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
+import com.handsmap.nsstour.IDownloadCallback;
 import com.handsmap.nsstour.IDownloadService;
-import com.handsmap.nsstour.manager.download.DownloadManager;
+
+import java.util.List;
 
 
 /**
@@ -17,8 +19,8 @@ import com.handsmap.nsstour.manager.download.DownloadManager;
 public class DownloadService extends Service
 {
     private DownloadControl mControl;
-    //下载广播消息接收器
-    private DownloadManager.DownloadReceiver downloadReceiver;
+    //客户端注册的回调，进度按帧合并后一次跨进程调用
+    private final RemoteCallbackList<IDownloadCallback> mCallbacks = new RemoteCallbackList<IDownloadCallback>();
 
     @Override
     public IBinder onBind(Intent intent)
@@ -31,19 +33,63 @@ public class DownloadService extends Service
     {
         super.onCreate();
         mControl = new DownloadControl(this);
-        DownloadManager manager = DownloadManager.getInstance(getApplicationContext());
-        downloadReceiver = manager.new DownloadReceiver();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(DownloadControl.RECEIVER_ACTION);
-        registerReceiver(downloadReceiver, filter); //注册广播
+        // 事件在进度线程中回调，RemoteCallbackList的广播不能并发调用
+        mControl.setEventListener(new DownloadEventListener()
+        {
+            @Override
+            public void onProgress(String[] urls, int[] percents, long[] speeds, long[] remainingTimes)
+            {
+                int count = mCallbacks.beginBroadcast();
+                try
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        try
+                        {
+                            mCallbacks.getBroadcastItem(i).onProgress(urls, percents, speeds, remainingTimes);
+                        } catch (RemoteException e)
+                        {
+                            // 客户端进程已经结束，RemoteCallbackList会自动移除
+                        }
+                    }
+                } finally
+                {
+                    mCallbacks.finishBroadcast();
+                }
+            }
+
+            @Override
+            public void onTaskEvent(int type, String url, String errorInfo)
+            {
+                int count = mCallbacks.beginBroadcast();
+                try
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        try
+                        {
+                            mCallbacks.getBroadcastItem(i).onTaskEvent(type, url, errorInfo);
+                        } catch (RemoteException e)
+                        {
+                            // 客户端进程已经结束，RemoteCallbackList会自动移除
+                        }
+                    }
+                } finally
+                {
+                    mCallbacks.finishBroadcast();
+                }
+            }
+        });
+        // 在后台线程中恢复进程被杀掉之前的下载队列，不阻塞onCreate
+        mControl.restoreTasks();
     }
 
     @Override
     public void onDestroy()
     {
         super.onDestroy();
-        //服务停止时注销广播
-        unregisterReceiver(downloadReceiver);
+        mControl.shutdown();
+        mCallbacks.kill();
     }
 
     @Override
@@ -90,5 +136,145 @@ public class DownloadService extends Service
                 mControl.continueTask(url);
             }
         }
+
+        @Override
+        public void addTaskWithPriority(String url, int priority) throws RemoteException
+        {
+            if (!TextUtils.isEmpty(url))
+            {
+                mControl.addTaskWithPriority(url, priority);
+            }
+        }
+
+        @Override
+        public void setPriority(String url, int priority) throws RemoteException
+        {
+            if (!TextUtils.isEmpty(url))
+            {
+                mControl.setPriority(url, priority);
+            }
+        }
+
+        @Override
+        public void setGlobalBandwidthLimit(long bytesPerSecond) throws RemoteException
+        {
+            mControl.setGlobalBandwidthLimit(bytesPerSecond);
+        }
+
+        @Override
+        public void setTaskBandwidthLimit(String url, long bytesPerSecond) throws RemoteException
+        {
+            if (!TextUtils.isEmpty(url))
+            {
+                mControl.setTaskBandwidthLimit(url, bytesPerSecond);
+            }
+        }
+
+        @Override
+        public void setForegroundBandwidthReserve(int percent) throws RemoteException
+        {
+            mControl.setForegroundBandwidthReserve(percent);
+        }
+
+        @Override
+        public void addTaskWithDigest(String url, String algorithm, String digest) throws RemoteException
+        {
+            if (!TextUtils.isEmpty(url) && !TextUtils.isEmpty(algorithm) && !TextUtils.isEmpty(digest))
+            {
+                mControl.addTaskWithDigest(url, algorithm, digest);
+            }
+        }
+
+        @Override
+        public void addTaskAndExtract(String url, String directory) throws RemoteException
+        {
+            if (!TextUtils.isEmpty(url) && !TextUtils.isEmpty(directory))
+            {
+                mControl.addTaskAndExtract(url, directory);
+            }
+        }
+
+        @Override
+        public void addTaskWithDelta(String url, String manifestUrl) throws RemoteException
+        {
+            if (!TextUtils.isEmpty(url))
+            {
+                // 没有指定清单地址时使用默认地址
+                mControl.addTaskWithDelta(url, TextUtils.isEmpty(manifestUrl) ? null : manifestUrl);
+            }
+        }
+
+        @Override
+        public String addBulk(List<String> urls, String directory) throws RemoteException
+        {
+            if (urls == null || TextUtils.isEmpty(directory))
+            {
+                return null;
+            }
+            return mControl.addBulk(urls, directory);
+        }
+
+        @Override
+        public void cancelBulk(String id) throws RemoteException
+        {
+            if (!TextUtils.isEmpty(id))
+            {
+                mControl.cancelBulk(id);
+            }
+        }
+
+        @Override
+        public int addTasks(List<String> urls) throws RemoteException
+        {
+            return mControl.addTasks(urls);
+        }
+
+        @Override
+        public void pauseAll() throws RemoteException
+        {
+            mControl.pauseAll();
+        }
+
+        @Override
+        public void resumeAll() throws RemoteException
+        {
+            mControl.resumeAll();
+        }
+
+        @Override
+        public void deleteTasks(List<String> urls) throws RemoteException
+        {
+            mControl.deleteTasks(urls);
+        }
+
+        @Override
+        public void registerCallback(IDownloadCallback callback) throws RemoteException
+        {
+            if (callback != null)
+            {
+                mCallbacks.register(callback);
+            }
+        }
+
+        @Override
+        public void unregisterCallback(IDownloadCallback callback) throws RemoteException
+        {
+            if (callback != null)
+            {
+                mCallbacks.unregister(callback);
+            }
+        }
+
+        @Override
+        public void setBroadcastEnabled(boolean enabled) throws RemoteException
+        {
+            mControl.setBroadcastEnabled(enabled);
+        }
+
+        @Override
+        public String dumpMetrics() throws RemoteException
+        {
+            return mControl.dumpMetrics();
+        }
     }
 }
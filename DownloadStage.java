@@ -0,0 +1,42 @@
+package com.handsmap.util.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 下载的后处理阶段，下载过程中按顺序接收从网络读到的数据，比如边下载边解压
+ * <p/>
+ * 设置了后处理阶段的任务不分段下载；暂停后新建的任务使用同一个对象，等原来的任务abort并结束后才重新open，
+ * 同一时间只有一个任务在使用。
+ * 由实现自己保存断点，open时position之前的数据需要从临时文件中补上
+ *
+ * @author DaHui
+ */
+public interface DownloadStage
+{
+    /**
+     * 开始或者继续处理，在下载线程中调用
+     *
+     * @param source   下载的临时文件
+     * @param position 已经下载的大小，从头下载时为0
+     */
+    public void open(File source, long position) throws IOException;
+
+    /**
+     * 在下载线程中调用，处理buffer中剩余的数据；buffer会被复用，需要保留的数据要复制出来
+     */
+    public void write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * 数据全部写入之后调用，等待处理完成
+     *
+     * @throws IOException 处理失败
+     */
+    public void finish() throws IOException;
+
+    /**
+     * 暂停或者出错时调用，放弃没有处理的数据并保存断点；没有open或者已经finish时直接返回
+     */
+    public void abort();
+}
@@ -0,0 +1,208 @@
+package com.handsmap.util.download;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.handsmap.nsstour.manager.DataAccessManager;
+import com.handsmap.nsstour.model.db.TB_DownloadInfo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 下载状态延迟写入
+ * <p/>
+ * 所有对TB_DownloadInfo的写操作先记录在内存中，同一个URL的多次修改合并为一次，
+ * 在后台线程中定时批量写入数据库；状态变化时尽快写入，暂停、完成和Service销毁时同步写入
+ *
+ * @author DaHui
+ */
+class DownloadStateJournal
+{
+
+    //定时写入的间隔
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int NONE = -1;
+
+    private final DataAccessManager mDataAccessManager;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    //等待写入的修改，按URL合并
+    private final Map<String, PendingState> mPending = new LinkedHashMap<>();
+    //保证同一时刻只有一个线程在写数据库，写入顺序和修改顺序一致
+    private final Object mFlushLock = new Object();
+    private boolean mScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    /**
+     * 一个URL合并后的修改
+     */
+    private static class PendingState
+    {
+        //在这之前的记录需要先删除
+        boolean delete;
+        TB_DownloadInfo insert;
+        int status = NONE;
+        long totalSize = NONE;
+        long currentSize = NONE;
+    }
+
+    DownloadStateJournal(DataAccessManager dataAccessManager)
+    {
+        mDataAccessManager = dataAccessManager;
+        mThread = new HandlerThread("DownloadJournal", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    void insert(String url, TB_DownloadInfo info)
+    {
+        synchronized (mPending)
+        {
+            pending(url).insert = info;
+        }
+        schedule(false);
+    }
+
+    /**
+     * 修改下载状态，状态变化需要尽快写入
+     */
+    void updateStatus(String url, int status)
+    {
+        synchronized (mPending)
+        {
+            pending(url).status = status;
+        }
+        schedule(true);
+    }
+
+    void updateTotalSize(String url, long totalSize)
+    {
+        synchronized (mPending)
+        {
+            pending(url).totalSize = totalSize;
+        }
+        schedule(false);
+    }
+
+    void updateCurrentSize(String url, long currentSize)
+    {
+        synchronized (mPending)
+        {
+            pending(url).currentSize = currentSize;
+        }
+        schedule(false);
+    }
+
+    /**
+     * 删除记录，之前还没有写入的修改直接丢弃
+     */
+    void delete(String url)
+    {
+        synchronized (mPending)
+        {
+            PendingState state = new PendingState();
+            state.delete = true;
+            mPending.put(url, state);
+        }
+        schedule(true);
+    }
+
+    /**
+     * 在当前线程中立即写入所有修改
+     */
+    void flush()
+    {
+        synchronized (mFlushLock)
+        {
+            List<Map.Entry<String, PendingState>> batch;
+            synchronized (mPending)
+            {
+                mScheduled = false;
+                if (mPending.isEmpty())
+                {
+                    return;
+                }
+                batch = new ArrayList<>(mPending.entrySet());
+                mPending.clear();
+            }
+            for (Map.Entry<String, PendingState> entry : batch)
+            {
+                write(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 写入剩余的修改并停止后台线程
+     */
+    void shutdown()
+    {
+        mHandler.removeCallbacks(mFlushRunnable);
+        flush();
+        mThread.quit();
+    }
+
+    private PendingState pending(String url)
+    {
+        PendingState state = mPending.get(url);
+        if (state == null)
+        {
+            state = new PendingState();
+            mPending.put(url, state);
+        }
+        return state;
+    }
+
+    private void schedule(boolean immediately)
+    {
+        synchronized (mPending)
+        {
+            if (immediately)
+            {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+                mScheduled = true;
+            } else if (!mScheduled)
+            {
+                mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL_MILLIS);
+                mScheduled = true;
+            }
+        }
+    }
+
+    private void write(String url, PendingState state)
+    {
+        if (state.delete)
+        {
+            mDataAccessManager.deleteDownloadInfo(url);
+        }
+        if (state.insert != null)
+        {
+            mDataAccessManager.downInfoInsert(state.insert);
+        }
+        if (state.totalSize != NONE)
+        {
+            mDataAccessManager.updateDownloadTotalSize(url, state.totalSize);
+        }
+        if (state.currentSize != NONE)
+        {
+            mDataAccessManager.updateDownloadCurrentSize(url, state.currentSize);
+        }
+        if (state.status != NONE)
+        {
+            mDataAccessManager.updateDownloadStatus(url, state.status);
+        }
+    }
+}
@@ -2,33 +2,46 @@ package com.handsmap.util.download;
 
 import android.accounts.NetworkErrorException;
 import android.content.Context;
-import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
+import android.os.Handler;
 
 import com.handsmap.exception.DownloadException;
-import com.handsmap.nsstour.manager.DataAccessManager;
 import com.handsmap.nsstour.model.db.TB_DownloadInfo;
-import com.handsmap.util.common.FileInfoUtils;
+import com.handsmap.util.Logger;
 import com.handsmap.util.netstate.NetWorkUtil;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * 下载任务，使用异步任务进行下载操作
+ * 下载任务，使用异步任务进行下载操作，在DownloadEngine的线程池中执行，下载进度在进度线程中回调
  *
  * @author DaHui
  */
-public class DownloadTask extends AsyncTask<Void, Integer, Long>
+public class DownloadTask extends AsyncTask<Void, Integer, Long> implements DownloadEventDispatcher.Progress,
+        TaskRegistry.Task
 {
 
     public interface DownloadTaskListener
@@ -42,7 +55,12 @@ public class DownloadTask extends AsyncTask<Void, Integer, Long>
 
     private static final String TAG = DownloadTask.class.getSimpleName();
     private static final String TEMP_SUFFIX = ".download";
-    private static final int BUFFER_SIZE = 8 * 1024;
+    //默认分段数，只有服务器声明支持Range时才会分段下载
+    private static final int DEFAULT_SEGMENT_COUNT = 3;
+    //每个分段的最小大小，文件太小时分段没有意义
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    //下载过程中保存断点信息的间隔
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
 
     private DownloadTaskListener mListener;
     private String mUrl;
@@ -50,46 +68,75 @@ public class DownloadTask extends AsyncTask<Void, Integer, Long>
     private File mFile;
     private File mTempFile;
     //文件大小
-    private long mTotalSize;
+    private volatile long mTotalSize;
+    //需要从网络下载的大小，增量更新时不包括从旧文件复用的块，进度和剩余时间按这个大小计算
+    private volatile long mTransferSize;
     //之前已经没有下载完的文件大小
-    private long mPreviousFileSize;
+    private volatile long mPreviousFileSize;
     //下载的大小
-    private long mDownloadSize;
+    private volatile long mDownloadSize;
     //下载百分比
     private long mDownloadPercent;
-    //下载速度
-    private long mDownloadSpeed;
-    //开始下载的时间
-    private long mStartTime;
-    private boolean mInterrupt = false;
+    //下载速度，字节/秒，最近几秒的加权平均
+    private volatile long mDownloadSpeed;
+    //按当前速度估计的剩余时间，毫秒
+    private volatile long mRemainingTime = SpeedEstimator.UNKNOWN;
+    //上次通知监听器时的速度
+    private long mNotifiedSpeed;
+    //优先级，越大越优先
+    private int mPriority = DownloadControl.PRIORITY_NORMAL;
+    //分段数，小于等于1时使用单连接下载
+    private int mSegmentCount = DEFAULT_SEGMENT_COUNT;
+    //任务自己的限速，没有限速时为null
+    private volatile BandwidthGovernor.TokenBucket mBandwidthBucket;
+    //开始下载时是否前台任务，前台任务可以使用预留的带宽
+    private boolean mForeground;
+    private volatile boolean mInterrupt = false;
+    //下载完成并且已经重命名为正式文件
+    private boolean mFinished = false;
     private Throwable mError = null;
 
-    private AndroidHttpClient mHttpClient;
-    private DataAccessManager dataAccessManager;
+    //所有任务共用的连接池
+    private DownloadConnectionPool mConnectionPool;
+    private DownloadStateJournal mStateJournal;
+    private DownloadEngine mEngine;
+    //本次下载的进度，所有写入（包括分段）都累加到这里，由进度线程定时上报
+    private ProgressReporter mProgressReporter;
+    //写文件统计，所有写入器关闭时累加
+    private long mWriteBytes;
+    private long mWriteCalls;
+    private long mWriteNanos;
+    //DNS、建立连接、首字节和读网络数据的累计耗时
+    private final DownloadMetrics.TaskTiming mTiming = new DownloadMetrics.TaskTiming();
+    //期望的文件摘要（十六进制）和算法，没有设置时不校验
+    private String mDigestAlgorithm;
+    private String mExpectedDigest;
+    //暂停时保存的摘要状态，暂停后新建的任务接着计算，不用重新读取已经下载的部分
+    private DigestState mDigestState = new DigestState();
+    //下载过程中处理数据的后处理阶段，比如边下载边解压，没有设置时为null
+    private DownloadStage mStage;
+    //增量更新的块校验清单地址，本地有旧文件时只下载变化的块，没有设置时为null
+    private String mDeltaManifestUrl;
+    //正在下载时的断点信息，进度线程定时保存，进程被杀掉后可以从最近保存的位置继续
+    private volatile DownloadCheckpoint mCheckpoint;
+    private long mCheckpointSavedNanos;
+    //请求暂停的时间，用来统计暂停延迟
+    private volatile long mPauseRequestNanos;
+    //请求继续下载的时间，用来统计继续下载的延迟
+    private volatile long mResumeRequestNanos;
+    //已经交给线程池执行，之后doInBackground一定会运行
+    private volatile boolean mStarted;
+    //doInBackground结束时计数
+    private final CountDownLatch mExited = new CountDownLatch(1);
+    //暂停或者出错之前还在运行的任务对象，和这个任务共用摘要状态、后处理阶段和临时文件，开始下载前等它结束
+    private DownloadTask mPredecessor;
 
-    private final class ProgressReportingRandomAccessFile extends RandomAccessFile
-    {
-
-        private int progress = 0;
-
-        public ProgressReportingRandomAccessFile(File file, String mode) throws FileNotFoundException
-        {
-            super(file, mode);
-        }
-
-        @Override
-        public void write(byte[] buffer, int byteOffset, int byteCount) throws IOException
-        {
-            super.write(buffer, byteOffset, byteCount);
-
-            progress += byteCount;
-            publishProgress(progress);
-        }
-    }
-
-    public DownloadTask(Context context, String url, String savedPath, DownloadTaskListener l) throws MalformedURLException
+    public DownloadTask(Context context, DownloadEngine engine, String url, String savedPath, DownloadTaskListener l)
+            throws MalformedURLException
     {
         mContext = context;
+        mEngine = engine;
+        mConnectionPool = engine.getConnectionPool();
         mUrl = url;
         mListener = l;
 
@@ -98,55 +145,158 @@ public class DownloadTask extends AsyncTask<Void, Integer, Long>
         mFile = new File(savedPath, name);
         mTempFile = new File(savedPath, name + TEMP_SUFFIX);
 
-        dataAccessManager = DataAccessManager.getInstance(context);
+        mStateJournal = engine.getStateJournal();
         TB_DownloadInfo d = new TB_DownloadInfo();
         d.setUrl(url);
         d.setName(name);
         d.setSavePath(savedPath);
-        dataAccessManager.downInfoInsert(d);
+        mStateJournal.insert(url, d);
+
+        mProgressReporter = engine.newProgressReporter(new ProgressReporter.Callback()
+        {
+            @Override
+            public void onProgress(long bytes)
+            {
+                onProgressUpdate(bytes);
+            }
+        });
     }
 
-    @Override
-    protected void onPreExecute()
+    /**
+     * 在下载引擎的线程池中开始下载
+     */
+    public void start()
     {
-        mStartTime = System.currentTimeMillis();
+        mStarted = true;
+        executeOnExecutor(mEngine.getExecutor());
     }
 
     @Override
     protected Long doInBackground(Void... params)
     {
+        awaitPredecessor();
+        try
+        {
+            return runDownload();
+        } finally
+        {
+            mExited.countDown();
+        }
+    }
 
+    /**
+     * 等暂停或者出错之前的任务对象结束：旧任务停止复制后才保存摘要状态并放弃后处理，
+     * 在这之前开始会读到旧的摘要状态，旧任务的abort也会停掉新任务刚打开的后处理
+     */
+    private void awaitPredecessor()
+    {
+        DownloadTask predecessor = mPredecessor;
+        if (predecessor == null)
+        {
+            return;
+        }
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                predecessor.mExited.await();
+                break;
+            } catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        mPredecessor = null;
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long runDownload()
+    {
         long result = -1;
+        BandwidthGovernor governor = mEngine.getBandwidthGovernor();
+        mForeground = mPriority >= DownloadControl.PRIORITY_HIGH;
+        governor.onTaskStart(mForeground);
+        mProgressReporter.start();
         try
         {
             result = download();
         } catch (NetworkErrorException | DownloadException | IOException e)
         {
             mError = e;
+        } finally
+        {
+            mProgressReporter.stop();
+            governor.onTaskFinish(mForeground);
+            mEngine.getStorageLedger().release(mUrl);
+            recordMetrics();
+        }
+        if (result != -1 && !mInterrupt && mError == null)
+        {
+            /*
+             * finish download
+             */
+            mTempFile.renameTo(mFile);
+            if (mExpectedDigest != null)
+            {
+                // 摘要已经校验过，之后内容相同的任务可以直接复用
+                mEngine.getContentIndex().put(mDigestAlgorithm, mExpectedDigest, mFile);
+            }
+
+            // 下载完成更新下载状态为下载完成状态，在后台线程中同步写入
+            mStateJournal.updateStatus(mUrl, DownloadControl.STATUS_COMPLETE);
+            mStateJournal.flush();
+            mFinished = true;
+        } else if (mInterrupt)
+        {
+            // 暂停后下载线程已经停止写文件，在这里同步写入暂停状态和最后的进度，不占用调用pause的线程
+            mStateJournal.flush();
         }
         return result;
     }
 
+    private void recordMetrics()
+    {
+        DownloadMetrics metrics = mEngine.getMetrics();
+        if (mPauseRequestNanos != 0)
+        {
+            metrics.recordPause(System.nanoTime() - mPauseRequestNanos);
+        }
+        synchronized (this)
+        {
+            metrics.recordTask(mTiming, mProgressReporter.get(), mWriteBytes, mWriteNanos);
+        }
+        // 暂停导致的中断不算错误
+        if (mError != null && !mInterrupt)
+        {
+            metrics.recordError(mError);
+        }
+    }
+
+    /**
+     * 各阶段耗时：DNS、建立连接（包括TLS）、首字节、读网络数据、写文件
+     */
+    public synchronized void dumpTiming(StringBuilder sb)
+    {
+        DownloadMetrics.dump(sb, mTiming, mWriteNanos);
+    }
+
     @Override
     protected void onPostExecute(Long result)
     {
-        if (result == -1 || mInterrupt || mError != null)
+        if (!mFinished)
         {
             // 下载过程中遇到错误就重置下载状态
-            dataAccessManager.updateDownloadStatus(mUrl, DownloadControl.STATUS_PAUSE);
+            mStateJournal.updateStatus(mUrl, DownloadControl.STATUS_PAUSE);
             if (mListener != null)
             {
                 mListener.errorDownload(this, mError);
             }
             return;
         }
-        /*
-         * finish download
-		 */
-        mTempFile.renameTo(mFile);
-
-        // 下载完成更新下载状态为下载完成状态
-        dataAccessManager.updateDownloadStatus(mUrl, DownloadControl.STATUS_COMPLETE);
         if (mListener != null)
         {
             mListener.finishDownload(this);
@@ -155,14 +305,16 @@ public class DownloadTask extends AsyncTask<Void, Integer, Long>
 
     public void pause()
     {
+        mPauseRequestNanos = System.nanoTime();
         onCancelled();
-        dataAccessManager.updateDownloadStatus(mUrl, DownloadControl.STATUS_PAUSE);
+        // 调用方是Binder线程或者主线程，这里只记录状态，写库由日志线程和下载线程退出时完成
+        mStateJournal.updateStatus(mUrl, DownloadControl.STATUS_PAUSE);
     }
 
     public void delete()
     {
         onCancelled();
-        dataAccessManager.deleteDownloadInfo(mUrl);
+        mStateJournal.delete(mUrl);
     }
 
     @Override
@@ -172,46 +324,104 @@ public class DownloadTask extends AsyncTask<Void, Integer, Long>
         mInterrupt = true;
     }
 
-    @Override
-    protected void onProgressUpdate(Integer... values)
+    /**
+     * 提交文件大小，在进度线程中回调，不占用UI线程
+     */
+    private void reportTotalSize(final long transferSize)
     {
-        if (values.length > 1)
+        mEngine.getProgressHandler().post(new Runnable()
         {
-            // 下载开始后会走到这里
-            mTotalSize = values[1];
-            // 避免暂停后然后继续下载会短暂的出现0%的情况需要计算下载百分比
-            mDownloadPercent = (mDownloadSize + mPreviousFileSize) * 100 /
-                    mTotalSize;
-            if (mListener != null)
+            @Override
+            public void run()
             {
-                mListener.updateProgress(this);
+                onTotalSizeUpdate(transferSize);
             }
-            dataAccessManager.updateDownloadStatus(mUrl, DownloadControl.STATUS_DOWNLOADING);
-            dataAccessManager.updateDownloadTotalSize(mUrl, mTotalSize);
-        } else
+        });
+    }
+
+    /**
+     * 下载开始后会走到这里，在进度线程中执行
+     *
+     * @param transferSize 需要从网络下载的大小，不是增量更新时就是文件大小
+     */
+    private void onTotalSizeUpdate(long transferSize)
+    {
+        // 避免暂停后然后继续下载会短暂的出现0%的情况需要计算下载百分比
+        mDownloadPercent = percent(mDownloadSize + mPreviousFileSize, transferSize);
+        if (mListener != null)
         {
-            mDownloadSize = values[0];
-            long totalTime = System.currentTimeMillis() - mStartTime;
-            long tempSize = mDownloadSize + mPreviousFileSize;
-            // mDao.updateCurrentSizeByUrl(mUrl, tempSize);
+            mListener.updateProgress(this);
+        }
+        mStateJournal.updateTotalSize(mUrl, transferSize);
+        mStateJournal.updateStatus(mUrl, DownloadControl.STATUS_DOWNLOADING);
+    }
 
-            mDownloadSpeed = mDownloadSize / totalTime;// kbps
+    /**
+     * 合并后的下载进度，在进度线程中执行
+     *
+     * @param downloadSize 本次已经下载的大小
+     */
+    private void onProgressUpdate(long downloadSize)
+    {
+        mDownloadSize = downloadSize;
+        long tempSize = mDownloadSize + mPreviousFileSize;
+        // mDao.updateCurrentSizeByUrl(mUrl, tempSize);
+
+        saveCheckpointIfNeeded();
+        mEngine.getStorageLedger().update(mUrl, mTransferSize - tempSize);
+        mDownloadSpeed = mProgressReporter.getSpeed();
+        mRemainingTime = SpeedEstimator.remainingMillis(mTransferSize - tempSize, mDownloadSpeed);
 
-            long temp = tempSize * 100 / mTotalSize;
-            if (mDownloadPercent != temp)
+        long temp = percent(tempSize, mTransferSize);
+        // 百分比不变时速度变化超过四分之一也通知，停顿能及时显示出来
+        if (mDownloadPercent != temp || Math.abs(mDownloadSpeed - mNotifiedSpeed) > mNotifiedSpeed / 4)
+        {
+            mDownloadPercent = temp;
+            mNotifiedSpeed = mDownloadSpeed;
+            if (mListener != null)
             {
-                mDownloadPercent = temp;
-                if (mListener != null)
-                {
-                    mListener.updateProgress(this);
-                }
+                mListener.updateProgress(this);
             }
         }
     }
 
+    private static long percent(long size, long transferSize)
+    {
+        return transferSize > 0 ? size * 100 / transferSize : 100;
+    }
+
+    /**
+     * 下载过程中定时保存断点信息，在进度线程中执行
+     */
+    private void saveCheckpointIfNeeded()
+    {
+        DownloadCheckpoint checkpoint = mCheckpoint;
+        long now = System.nanoTime();
+        if (checkpoint == null || now - mCheckpointSavedNanos < CHECKPOINT_INTERVAL_NANOS)
+        {
+            return;
+        }
+        mCheckpointSavedNanos = now;
+        try
+        {
+            checkpoint.save();
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+        }
+    }
+
     private long download() throws NetworkErrorException, IOException, DownloadException
     {
 
+        /*
+         * reuse identical content
+         */
+        if (reuseIndexedContent())
+        {
+            return 0;
+        }
+
 		/*
          * check net work
 		 */
@@ -223,110 +433,957 @@ public class DownloadTask extends AsyncTask<Void, Integer, Long>
 		/*
          * check file length
 		 */
-        mHttpClient = AndroidHttpClient.newInstance(TAG);
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(mTempFile);
+        if (checkpoint != null && !mTempFile.exists())
+        {
+            checkpoint.delete();
+            checkpoint = null;
+        }
+        if (checkpoint == null && mDeltaManifestUrl != null && mFile.exists())
+        {
+            checkpoint = prepareDelta();
+        }
+        if (checkpoint != null && checkpoint.isComplete())
+        {
+            // 增量更新时本地旧文件已经包含所有的块，或者上次所有分段都下载完了但还没有校验和改名（进程被杀），
+            // 不用再请求：按bytes=总大小-请求会得到416，把下载完的临时文件删掉
+            mTotalSize = checkpoint.getTotalSize();
+            mPreviousFileSize = checkpoint.getDownloadedSize();
+            mTransferSize = checkpoint.getTransferSize();
+            mCheckpoint = checkpoint;
+            reportTotalSize(mTransferSize);
+            return downloadSegments(checkpoint);
+        }
         HttpGet httpGet = new HttpGet(mUrl);
-        HttpResponse response = mHttpClient.execute(httpGet);
-        mTotalSize = response.getEntity().getContentLength();
+        if (checkpoint != null)
+        {
+            // 已经下载过了，断点下载。只发一次请求，If-Range保证服务器上的文件没有变化，变了会直接返回完整的文件；
+            // 分段下载和增量更新时只请求一个字节用来校验，每个分段再单独请求
+            DownloadSegment first = checkpoint.getFirstIncompleteSegment();
+            String end = checkpoint.getSegments().length > 1 || checkpoint.isSparse()
+                    ? String.valueOf(first.position()) : "";
+            httpGet.addHeader("Range", "bytes=" + first.position() + "-" + end);
+            if (checkpoint.getValidator() != null)
+            {
+                httpGet.addHeader("If-Range", checkpoint.getValidator());
+            }
+        }
+        HttpResponse response = mConnectionPool.execute(httpGet, mTiming);
+        if (mResumeRequestNanos != 0)
+        {
+            mEngine.getMetrics().recordResume(System.nanoTime() - mResumeRequestNanos);
+        }
+        InputStream inputStream = null;
+        DownloadSegment segment = null;
+        try
+        {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_PARTIAL_CONTENT && checkpoint != null)
+            {
+                // 服务器上的文件没有变化，接着下载
+                mTotalSize = parseTotalSize(response);
+                if (mTotalSize != checkpoint.getTotalSize())
+                {
+                    checkpoint.delete();
+                    mTempFile.delete();
+                    throw new DownloadException(DownloadControl.ERROR_DOWNLOAD_INTERRUPT);
+                }
+                if (checkpoint.getValidator() == null)
+                {
+                    // 增量更新的断点信息是按清单创建的，这里才拿到文件的校验值，之后的分段和继续下载都带上If-Range
+                    checkpoint.setValidator(getValidator(response));
+                    checkpoint.save();
+                }
+            } else if (status == HttpStatus.SC_OK)
+            {
+                // 第一次下载或者服务器上的文件变了，从头下载
+                if (checkpoint != null)
+                {
+                    checkpoint.delete();
+                }
+                mTempFile.delete();
+                mTotalSize = response.getEntity().getContentLength();
+
+                // 长度未知（chunked）或者为空时没法断点续传；小文件可以用批量下载
+                if (mTotalSize <= 0)
+                {
+                    throw new DownloadException(DownloadControl.ERROR_URL);
+                }
+
+                // 增量更新时旧文件大小相同不代表内容相同
+                if (mDeltaManifestUrl == null && mFile.exists() && mFile.length() == mTotalSize)
+                {
+                    throw new DownloadException(DownloadControl.ERROR_FILE_EXIST);
+                }
+                // 需要校验摘要或者有后处理阶段时按顺序下载，下载过程中计算摘要、交给后处理阶段
+                int count = mExpectedDigest == null && mStage == null && isSegmentable(response)
+                        ? (int) Math.min(mSegmentCount, mTotalSize / MIN_SEGMENT_SIZE) : 1;
+                checkpoint = DownloadCheckpoint.create(mTempFile, mTotalSize, count, getValidator(response));
+                checkpoint.save();
+            } else if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && checkpoint != null)
+            {
+                // 断点信息和服务器上的文件对不上，下次从头下载
+                checkpoint.delete();
+                mTempFile.delete();
+                throw new DownloadException(DownloadControl.ERROR_DOWNLOAD_INTERRUPT);
+            } else
+            {
+                throw new DownloadException(DownloadControl.ERROR_URL);
+            }
+            mPreviousFileSize = checkpoint.getDownloadedSize();
+            mTransferSize = checkpoint.getTransferSize();
+            mCheckpoint = checkpoint;
+
+            /*
+             * check memory
+             */
+            reserveStorage(mTransferSize - mPreviousFileSize);
+            // 提交当前需要下载的大小
+            reportTotalSize(mTransferSize);
+
+            if (checkpoint.getSegments().length > 1 || checkpoint.isSparse())
+            {
+                // 分段下载，这次请求只用来获取文件信息
+                httpGet.abort();
+                httpGet = null;
+                return downloadSegments(checkpoint);
+            }
+
+            /*
+             * start download
+             */
+            segment = checkpoint.getSegments()[0];
+            MessageDigest digest = openDigest(segment.position());
+            openStage(segment.position());
+            DownloadWriter writer = openWriter(mEngine.getWriteMode());
+            inputStream = response.getEntity().getContent();
+
+            long bytesCopied;
+            try
+            {
+                bytesCopied = copy(inputStream, writer, segment, null, digest, mStage);
+            } finally
+            {
+                closeWriter(writer);
+                checkpoint.save();
+            }
+            if (digest != null)
+            {
+                // 只在正常结束和暂停时保存，出错时继续下载会重新读取临时文件计算
+                mDigestState.save(digest, segment.position());
+            }
+            Logger.d(TAG, mUrl + " write " + getWriteThroughput() + " B/s, " + getWriteCallsPerMB() + " calls/MB");
 
-        if (mTotalSize < 1024)
+            if (segment.isComplete())
+            {
+                checkpoint.delete();
+                verifyDigest(digest);
+                finishStage();
+            } else if (!mInterrupt)
+            {
+                throw new DownloadException(DownloadControl.ERROR_DOWNLOAD_INTERRUPT);
+            }
+            return bytesCopied;
+        } finally
         {
-            throw new DownloadException(DownloadControl.ERROR_URL);
+            mCheckpoint = null;
+            if (mStage != null)
+            {
+                // 暂停或者出错时停止后处理并保存断点，已经完成时直接返回
+                mStage.abort();
+            }
+            release(httpGet, inputStream, segment != null && segment.isComplete());
         }
+    }
 
-        if (mFile.exists() && mFile.length() == mTotalSize)
+    /**
+     * 内容索引中有摘要相同的文件时链接或者复制到临时文件，不用联网；
+     * 目标文件自己就在索引中时按原来的流程处理
+     *
+     * @return 没有可以复用的文件时返回false
+     */
+    private boolean reuseIndexedContent() throws IOException, DownloadException
+    {
+        if (mExpectedDigest == null)
         {
-            throw new DownloadException(DownloadControl.ERROR_FILE_EXIST);
-        } else if (mTempFile.exists() && mTempFile.length() > 0)
+            return false;
+        }
+        File source = mEngine.getContentIndex().get(mDigestAlgorithm, mExpectedDigest);
+        if (source == null || source.equals(mFile))
+        {
+            return false;
+        }
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(mTempFile);
+        if (checkpoint != null)
         {
-            // 已经下载过了，断点下载
-            mPreviousFileSize = mTempFile.length() - 1;
-            httpGet.addHeader("Range", "bytes=" + mPreviousFileSize + "-");
-            mHttpClient.close();
-            mHttpClient = AndroidHttpClient.newInstance(TAG);
-            response = mHttpClient.execute(httpGet);
+            checkpoint.delete();
         }
+        ContentIndex.linkOrCopy(source, mTempFile, new byte[mEngine.getBufferSize()]);
+        // 索引只记录了大小和修改时间，内容可能被改过（修改时间的精度是秒，或者被恢复过），复用前重新校验摘要
+        MessageDigest digest = newDigest();
+        hashTempFile(digest, mTempFile.length());
+        if (!toHex(digest.digest()).equalsIgnoreCase(mExpectedDigest))
+        {
+            Logger.e(TAG, mUrl + " indexed " + source + " no longer matches " + mExpectedDigest);
+            mEngine.getContentIndex().remove(mDigestAlgorithm, mExpectedDigest);
+            mTempFile.delete();
+            return false;
+        }
+        Logger.d(TAG, mUrl + " reuse " + source);
+        mTotalSize = source.length();
+        mPreviousFileSize = mTotalSize;
+        mTransferSize = mTotalSize;
+        reportTotalSize(source.length());
+        openStage(source.length());
+        finishStage();
+        return true;
+    }
 
-		/*
-         * check memory
-		 */
-        long storage = FileInfoUtils.getAvailableStorage();
-        if (mTotalSize - mTempFile.length() > storage)
+    /**
+     * 增量更新：下载块校验清单，从本地旧文件中复制没有变化的块到临时文件，只把缺少的区间写入断点信息；
+     * 清单不存在或者格式不正确时返回null，按原来的流程下载整个文件
+     */
+    private DownloadCheckpoint prepareDelta() throws IOException, DownloadException
+    {
+        HttpGet httpGet = new HttpGet(mDeltaManifestUrl);
+        HttpResponse response = mConnectionPool.execute(httpGet, mTiming);
+        InputStream inputStream = null;
+        BlockManifest manifest = null;
+        try
         {
-            throw new DownloadException(DownloadControl.ERROR_NOMEMORY);
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK)
+            {
+                inputStream = response.getEntity().getContent();
+                manifest = BlockManifest.parse(inputStream);
+            }
+        } catch (IOException e)
+        {
+            Logger.e(TAG, mDeltaManifestUrl + ": " + e.getMessage());
+        } finally
+        {
+            release(httpGet, inputStream, manifest != null);
         }
-        /*
-         * start download
-		 */
-        RandomAccessFile accessFile = new ProgressReportingRandomAccessFile(mTempFile, "rw");
-        // 提交当前下载文件大小
-        publishProgress(0, (int) mTotalSize);
-        InputStream inputStream = response.getEntity().getContent();
+        if (manifest == null)
+        {
+            return null;
+        }
+        mTempFile.delete();
+        mTotalSize = manifest.getLength();
+        // 先预留并预分配整个新文件，再写入复用的块
+        reserveStorage(mTotalSize);
+        List<DownloadSegment> missing = manifest.reuse(mFile, mTempFile);
+        if (mExpectedDigest == null && manifest.getSha1() != null)
+        {
+            // 复用的块和下载的区间拼起来之后用整个文件的摘要再校验一次
+            setExpectedDigest("SHA-1", manifest.getSha1());
+        }
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.create(mTempFile, mTotalSize, missing, null);
+        checkpoint.save();
+        Logger.d(TAG, mUrl + " delta: reuse " + (mTotalSize - checkpoint.getTransferSize()) + " of " + mTotalSize
+                + " bytes, " + missing.size() + " ranges to fetch");
+        return checkpoint;
+    }
+
+    /**
+     * 从Content-Range（bytes 100-199/1000）中取出文件总大小
+     *
+     * @return 没有时返回-1
+     */
+    private static long parseTotalSize(HttpResponse response)
+    {
+        Header contentRange = response.getFirstHeader("Content-Range");
+        if (contentRange != null)
+        {
+            String value = contentRange.getValue();
+            int index = value.lastIndexOf('/');
+            if (index >= 0)
+            {
+                try
+                {
+                    return Long.parseLong(value.substring(index + 1).trim());
+                } catch (NumberFormatException e)
+                {
+                    // 总大小未知（*）
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 断点续传时If-Range使用的校验值，优先使用强ETag，没有时使用Last-Modified
+     *
+     * @return 都没有时返回null，这时只能依靠Content-Range中的文件大小判断文件是否变化
+     */
+    private static String getValidator(HttpResponse response)
+    {
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/"))
+        {
+            return etag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * 释放请求占用的连接：内容读完时关闭输入流，连接回到连接池复用；没有读完时断开连接，不读取剩余的数据
+     */
+    private void release(HttpGet request, InputStream inputStream, boolean complete)
+    {
+        if (request == null)
+        {
+            return;
+        }
+        if (complete && inputStream != null)
+        {
+            try
+            {
+                inputStream.close();
+                return;
+            } catch (IOException e)
+            {
+                // 关闭失败时断开连接
+            }
+        }
+        request.abort();
+    }
 
-        int bytesCopied = copy(inputStream, accessFile);
+    /**
+     * 分段下载，每个分段使用单独的连接同时下载，写入临时文件中各自的位置
+     *
+     * @param checkpoint 分段信息
+     * @return 本次下载的大小
+     */
+    private long downloadSegments(final DownloadCheckpoint checkpoint) throws IOException, DownloadException
+    {
+        DownloadSegment[] segments = checkpoint.getSegments();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        // 增量更新时区间可能很多，同时下载的连接数不超过分段数
+        int threads = Math.max(1, Math.min(segments.length, Math.max(mSegmentCount, DEFAULT_SEGMENT_COUNT)));
+        final Queue<DownloadSegment> pending = new ConcurrentLinkedQueue<>();
+        for (DownloadSegment segment : segments)
+        {
+            if (!segment.isComplete())
+            {
+                pending.add(segment);
+            }
+        }
+        // 引擎的工作线程池不限制线程数，这里只提交threads个，每个依次下载剩下的分段
+        ExecutorService executor = mEngine.getWorkerExecutor();
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(threads, pending.size()); i++)
+        {
+            futures.add(executor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws Exception
+                {
+                    long count = 0;
+                    DownloadSegment segment;
+                    while (!mInterrupt && !failed.get() && (segment = pending.poll()) != null)
+                    {
+                        count += new SegmentWorker(checkpoint, segment, failed).call();
+                    }
+                    return count;
+                }
+            }));
+        }
 
-        if ((mPreviousFileSize + bytesCopied) != mTotalSize && mTotalSize != 0 && !mInterrupt)
+        long bytesCopied = 0;
+        Throwable error = null;
+        for (Future<Long> future : futures)
+        {
+            try
+            {
+                bytesCopied += future.get();
+            } catch (ExecutionException e)
+            {
+                if (error == null)
+                {
+                    error = e.getCause();
+                }
+            } catch (InterruptedException e)
+            {
+                mInterrupt = true;
+                for (Future<Long> other : futures)
+                {
+                    other.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (error instanceof DownloadException)
+        {
+            throw (DownloadException) error;
+        } else if (error instanceof IOException)
+        {
+            throw (IOException) error;
+        } else if (error != null)
+        {
+            throw new DownloadException(DownloadControl.ERROR_DOWNLOAD_INTERRUPT);
+        }
+        Logger.d(TAG, mUrl + " write " + getWriteThroughput() + " B/s, " + getWriteCallsPerMB() + " calls/MB");
+        if (checkpoint.isComplete())
+        {
+            checkpoint.delete();
+            if (mExpectedDigest != null)
+            {
+                // 设置摘要之前已经开始的分段下载，只能完成后读一遍文件
+                MessageDigest digest = newDigest();
+                hashTempFile(digest, mTotalSize);
+                verifyDigest(digest);
+            }
+            // 设置后处理阶段之前已经开始的分段下载，完成后从文件中处理
+            openStage(mTotalSize);
+            finishStage();
+        } else if (!mInterrupt)
         {
             throw new DownloadException(DownloadControl.ERROR_DOWNLOAD_INTERRUPT);
         }
         return bytesCopied;
     }
 
-    private int copy(InputStream inputStream, RandomAccessFile accessFile) throws IOException
+    /**
+     * 服务器声明支持Range并且文件足够大时才分段下载
+     */
+    private boolean isSegmentable(HttpResponse response)
+    {
+        Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+        return mSegmentCount > 1 && acceptRanges != null && acceptRanges.getValue().contains("bytes")
+                && mTotalSize >= MIN_SEGMENT_SIZE * 2;
+    }
+
+    /**
+     * 在账本中预留剩余需要的空间并预分配临时文件，在开始传输数据之前失败；预留保持到任务结束
+     */
+    private void reserveStorage(long required) throws IOException, DownloadException
+    {
+        StorageLedger ledger = mEngine.getStorageLedger();
+        if (mTempFile.length() >= mTotalSize)
+        {
+            // 继续下载：临时文件之前已经预分配过，再分配一次只会补上没有分配的块，
+            // 成功说明空间已经占好了，不能再拿剩下的可用空间比较，否则磁盘快满时继续下载会失败
+            try
+            {
+                if (FilePreallocator.preallocate(mTempFile, mTotalSize))
+                {
+                    ledger.reserveAllocated(mUrl, required);
+                    return;
+                }
+            } catch (IOException e)
+            {
+                Logger.e(TAG, e.getMessage());
+                throw new DownloadException(DownloadControl.ERROR_NOMEMORY);
+            }
+            // 只设置了长度（旧系统或者文件系统不支持），文件可能是稀疏的，按原来的方式检查
+        }
+        if (!ledger.reserve(mUrl, required))
+        {
+            throw new DownloadException(DownloadControl.ERROR_NOMEMORY);
+        }
+        boolean allocated;
+        try
+        {
+            allocated = FilePreallocator.preallocate(mTempFile, mTotalSize);
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+            ledger.release(mUrl);
+            throw new DownloadException(DownloadControl.ERROR_NOMEMORY);
+        }
+        if (allocated)
+        {
+            ledger.markAllocated(mUrl);
+        }
+    }
+
+    /**
+     * 下载一个分段，结束时（包括暂停和出错）保存断点信息
+     */
+    private final class SegmentWorker implements Callable<Long>
     {
 
-        if (inputStream == null || accessFile == null)
+        private final DownloadCheckpoint mCheckpoint;
+        private final DownloadSegment mSegment;
+        //任意一个分段出错时其他分段停止下载
+        private final AtomicBoolean mFailed;
+
+        SegmentWorker(DownloadCheckpoint checkpoint, DownloadSegment segment, AtomicBoolean failed)
+        {
+            mCheckpoint = checkpoint;
+            mSegment = segment;
+            mFailed = failed;
+        }
+
+        @Override
+        public Long call() throws Exception
         {
-            return -1;
+            HttpGet httpGet = new HttpGet(mUrl);
+            InputStream inputStream = null;
+            DownloadWriter writer = null;
+            long count;
+            try
+            {
+                httpGet.addHeader("Range", "bytes=" + mSegment.position() + "-" + mSegment.end);
+                if (mCheckpoint.getValidator() != null)
+                {
+                    // 文件在分段下载过程中变了会返回200，按中断处理，下次继续下载时整个文件重新开始
+                    httpGet.addHeader("If-Range", mCheckpoint.getValidator());
+                }
+                HttpResponse response = mConnectionPool.execute(httpGet, mTiming);
+                if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT)
+                {
+                    throw new DownloadException(DownloadControl.ERROR_DOWNLOAD_INTERRUPT);
+                }
+                inputStream = response.getEntity().getContent();
+                writer = openWriter(mEngine.getWriteMode());
+                count = copy(inputStream, writer, mSegment, mFailed, null, null);
+                if (!mSegment.isComplete() && !mInterrupt && !mFailed.get())
+                {
+                    throw new DownloadException(DownloadControl.ERROR_DOWNLOAD_INTERRUPT);
+                }
+            } catch (Exception e)
+            {
+                mFailed.set(true);
+                throw e;
+            } finally
+            {
+                release(httpGet, inputStream, mSegment.isComplete());
+                closeWriter(writer);
+                mCheckpoint.save();
+            }
+            return count;
         }
+    }
 
-        byte[] buffer = new byte[BUFFER_SIZE];
-        BufferedInputStream bis = new BufferedInputStream(inputStream, BUFFER_SIZE);
+    /**
+     * 把网络数据写入到分段所在的位置，直到分段下载完成、数据读完或者被中断
+     *
+     * @param stop 其他分段出错时停止，单连接下载时为null
+     * @return 本次写入的大小
+     */
+    private long copy(InputStream inputStream, DownloadWriter writer, DownloadSegment segment,
+                      final AtomicBoolean stop, MessageDigest digest, DownloadStage stage) throws IOException
+    {
+        final BandwidthGovernor governor = mEngine.getBandwidthGovernor();
+        final BandwidthGovernor.StopSignal stopSignal = new BandwidthGovernor.StopSignal()
+        {
+            @Override
+            public boolean isStopped()
+            {
+                return mInterrupt || (stop != null && stop.get());
+            }
+        };
+        return SegmentCopier.copy(inputStream, writer, segment, digest, stage, new SegmentCopier.Listener()
+        {
+            @Override
+            public boolean isStopped()
+            {
+                return stopSignal.isStopped();
+            }
+
+            @Override
+            public void onRead(int bytes)
+            {
+                // 限速很低时可能要等好几秒，暂停后不等完
+                governor.acquire(bytes, mForeground, mBandwidthBucket, stopSignal);
+            }
+
+            @Override
+            public void onWritten(int bytes)
+            {
+                mProgressReporter.add(bytes);
+            }
 
-        int totalCount = 0, readCount = 0;
+            @Override
+            public void onFinished(long readNanos)
+            {
+                mTiming.transferNanos.addAndGet(readNanos);
+            }
+        });
+    }
+
+    /**
+     * 单连接下载开始时取得摘要：暂停时保存的状态正好到position时接着用，否则重新读取临时文件中已经下载的部分
+     *
+     * @return 不需要校验时返回null
+     */
+    private MessageDigest openDigest(long position) throws IOException, DownloadException
+    {
+        if (mExpectedDigest == null)
+        {
+            return null;
+        }
+        MessageDigest digest = mDigestState.take(position);
+        if (digest == null)
+        {
+            digest = newDigest();
+            hashTempFile(digest, position);
+        }
+        return digest;
+    }
+
+    private MessageDigest newDigest() throws DownloadException
+    {
         try
         {
-            accessFile.seek(mPreviousFileSize);
+            return MessageDigest.getInstance(mDigestAlgorithm);
+        } catch (NoSuchAlgorithmException e)
+        {
+            Logger.e(TAG, e.getMessage());
+            throw new DownloadException(DownloadControl.ERROR_DIGEST);
+        }
+    }
 
-            while (!mInterrupt)
+    /**
+     * 读取临时文件的前length个字节更新摘要
+     */
+    private void hashTempFile(MessageDigest digest, long length) throws IOException
+    {
+        if (length <= 0)
+        {
+            return;
+        }
+        InputStream in = new FileInputStream(mTempFile);
+        try
+        {
+            byte[] buffer = new byte[mEngine.getBufferSize()];
+            long remaining = length;
+            while (remaining > 0)
             {
-                readCount = inputStream.read(buffer, 0, BUFFER_SIZE);
-                if (readCount == -1)
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1)
                 {
-                    break;
+                    throw new IOException("temp file shorter than " + length);
                 }
-                accessFile.write(buffer, 0, readCount);
-                totalCount += readCount;
+                digest.update(buffer, 0, count);
+                remaining -= count;
             }
         } finally
         {
-            mHttpClient.close();
-            mHttpClient = null;
-            accessFile.close();
-            inputStream.close();
-            bis.close();
+            in.close();
+        }
+    }
+
+    /**
+     * 从position开始把下载的数据交给后处理阶段，之前的部分由后处理阶段从临时文件中补上
+     */
+    private void openStage(long position) throws IOException
+    {
+        if (mStage != null)
+        {
+            mStage.open(mTempFile, position);
+        }
+    }
+
+    /**
+     * 等待后处理完成，失败时返回ERROR_STAGE；临时文件保留，下次重新请求时从头下载
+     */
+    private void finishStage() throws DownloadException
+    {
+        if (mStage == null)
+        {
+            return;
+        }
+        try
+        {
+            mStage.finish();
+        } catch (IOException e)
+        {
+            Logger.e(TAG, mUrl + " stage failed: " + e.getMessage());
+            throw new DownloadException(DownloadControl.ERROR_STAGE);
+        }
+    }
+
+    /**
+     * 摘要不一致时删除临时文件，下次从头下载
+     */
+    private void verifyDigest(MessageDigest digest) throws DownloadException
+    {
+        if (digest == null)
+        {
+            return;
+        }
+        String actual = toHex(digest.digest());
+        if (!actual.equalsIgnoreCase(mExpectedDigest))
+        {
+            Logger.e(TAG, mUrl + " digest mismatch: expected " + mExpectedDigest + ", actual " + actual);
+            mTempFile.delete();
+            throw new DownloadException(DownloadControl.ERROR_DIGEST);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[i * 2] = hex[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = hex[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    private DownloadWriter openWriter(int mode) throws IOException
+    {
+        return DownloadWriter.open(mode, mTempFile, mTotalSize, mEngine.getBufferSize());
+    }
+
+    /**
+     * 关闭写入器并累计写入统计，分段下载时多个线程会同时调用
+     */
+    private void closeWriter(DownloadWriter writer) throws IOException
+    {
+        if (writer == null)
+        {
+            return;
+        }
+        try
+        {
+            writer.close();
+        } finally
+        {
+            synchronized (this)
+            {
+                mWriteBytes += writer.getBytes();
+                mWriteCalls += writer.getCalls();
+                mWriteNanos += writer.getNanos();
+            }
+        }
+    }
+
+    /**
+     * 写文件的速度，只计算写入耗时，单位字节/秒
+     */
+    public synchronized long getWriteThroughput()
+    {
+        return mWriteNanos == 0 ? 0 : mWriteBytes * 1000000000L / mWriteNanos;
+    }
+
+    /**
+     * 每写入1MB需要的写文件系统调用次数
+     */
+    public synchronized long getWriteCallsPerMB()
+    {
+        return mWriteBytes == 0 ? 0 : mWriteCalls * 1024 * 1024 / mWriteBytes;
+    }
+
+    /**
+     * 设置期望的文件摘要，下载过程中按顺序计算，完成时不一致返回ERROR_DIGEST；设置后不再分段下载
+     *
+     * @param algorithm 摘要算法，MD5、SHA-256等
+     * @param digest    十六进制字符串，不区分大小写
+     */
+    public void setExpectedDigest(String algorithm, String digest)
+    {
+        mDigestAlgorithm = algorithm;
+        mExpectedDigest = digest;
+    }
+
+    public String getDigestAlgorithm()
+    {
+        return mDigestAlgorithm;
+    }
+
+    public String getExpectedDigest()
+    {
+        return mExpectedDigest;
+    }
+
+    /**
+     * 设置后处理阶段，下载过程中按顺序处理数据；设置后不再分段下载
+     */
+    public void setStage(DownloadStage stage)
+    {
+        mStage = stage;
+    }
+
+    public DownloadStage getStage()
+    {
+        return mStage;
+    }
+
+    /**
+     * 设置增量更新的块校验清单地址，本地已经有旧版本的文件时只下载变化的块
+     *
+     * @param manifestUrl 清单格式见BlockManifest，为null时下载整个文件
+     */
+    public void setDeltaManifest(String manifestUrl)
+    {
+        mDeltaManifestUrl = manifestUrl;
+    }
+
+    public String getDeltaManifest()
+    {
+        return mDeltaManifestUrl;
+    }
+
+    /**
+     * 继续下载暂停或者出错的任务时调用，统计从请求继续下载到收到响应的延迟
+     */
+    void markResumeRequested()
+    {
+        mResumeRequestNanos = System.nanoTime();
+    }
+
+    /**
+     * 暂停后会重新创建任务，新任务需要保留原来的设置
+     */
+    void inheritSettings(DownloadTask task)
+    {
+        setSegmentCount(task.getSegmentCount());
+        setPriority(task.getPriority());
+        setBandwidthLimit(task.getBandwidthLimit());
+        mDigestAlgorithm = task.mDigestAlgorithm;
+        mExpectedDigest = task.mExpectedDigest;
+        mDigestState = task.mDigestState;
+        mStage = task.mStage;
+        // 没有开始过的任务对象不会再运行，等它之前的任务
+        mPredecessor = task.mStarted ? task : task.mPredecessor;
+        mDeltaManifestUrl = task.mDeltaManifestUrl;
+        // 开始下载前也能算出剩余大小，重新开始时会被实际的值覆盖
+        mTotalSize = task.getTotalSize();
+        mTransferSize = task.mTransferSize;
+        mPreviousFileSize = task.getDownloadSize();
+    }
+
+    /**
+     * 设置任务限速，下载过程中也可以修改
+     *
+     * @param bytesPerSecond 字节/秒，小于等于0时不限速
+     */
+    public void setBandwidthLimit(long bytesPerSecond)
+    {
+        BandwidthGovernor.TokenBucket bucket = mBandwidthBucket;
+        if (bytesPerSecond <= 0)
+        {
+            mBandwidthBucket = null;
+        } else if (bucket == null)
+        {
+            mBandwidthBucket = new BandwidthGovernor.TokenBucket(bytesPerSecond);
+        } else
+        {
+            bucket.setRate(bytesPerSecond);
         }
+    }
+
+    public long getBandwidthLimit()
+    {
+        BandwidthGovernor.TokenBucket bucket = mBandwidthBucket;
+        return bucket == null ? BandwidthGovernor.UNLIMITED : bucket.getRate();
+    }
+
+    /**
+     * 设置分段数，需要在任务开始前设置，服务器不支持Range时仍然使用单连接下载
+     *
+     * @param segmentCount 分段数，小于等于1时不分段
+     */
+    public void setSegmentCount(int segmentCount)
+    {
+        mSegmentCount = segmentCount;
+    }
+
+    public int getSegmentCount()
+    {
+        return mSegmentCount;
+    }
+
+    public void setPriority(int priority)
+    {
+        mPriority = priority;
+    }
 
-        return totalCount;
+    public int getPriority()
+    {
+        return mPriority;
     }
 
+    @Override
     public String getUrl()
     {
         return mUrl;
     }
 
+    @Override
     public long getDownloadPercent()
     {
         return mDownloadPercent;
     }
 
+    /**
+     * 下载速度，最近几秒的加权平均，停顿时会逐渐降到0
+     *
+     * @return 字节/秒
+     */
+    @Override
     public long getDownloadSpeed()
     {
         return mDownloadSpeed;
     }
 
+    /**
+     * 按当前速度估计的剩余时间
+     *
+     * @return 毫秒，还没开始下载或者速度为0时返回-1
+     */
+    @Override
+    public long getRemainingTime()
+    {
+        return mRemainingTime;
+    }
+
+    /**
+     * 文件大小，还不知道时返回0
+     */
+    public long getTotalSize()
+    {
+        return mTotalSize;
+    }
+
     public long getDownloadSize()
     {
         return mDownloadSize + mPreviousFileSize;
     }
 
+    /**
+     * 还需要从网络下载的大小，增量更新时不包括复用的块；还不知道文件大小时返回0
+     */
+    public long getRemainingSize()
+    {
+        long transferSize = mTransferSize > 0 ? mTransferSize : mTotalSize;
+        return Math.max(0, transferSize - getDownloadSize());
+    }
+
+    /**
+     * 暂停时保存的摘要状态，暂停后新建的任务共用同一个对象
+     * <p/>
+     * 原来的任务停止复制后才保存，新任务等原来的任务结束后才开始，只有位置正好对上才接着用，否则重新读取已经下载的部分
+     */
+    private static final class DigestState
+    {
+
+        private MessageDigest mDigest;
+        private long mPosition;
+
+        synchronized void save(MessageDigest digest, long position)
+        {
+            mDigest = digest;
+            mPosition = position;
+        }
+
+        /**
+         * @return 位置对不上时返回null
+         */
+        synchronized MessageDigest take(long position)
+        {
+            MessageDigest digest = mDigest;
+            mDigest = null;
+            return digest != null && mPosition == position ? digest : null;
+        }
+    }
+
 }
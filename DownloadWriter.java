@@ -0,0 +1,260 @@
+package com.handsmap.util.download;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 下载文件写入器，一个写入器只在一个下载线程中使用
+ * <p/>
+ * 支持三种写入方式：RandomAccessFile（原来的方式）、FileChannel按位置写入、内存映射（文件大小已知时），
+ * 每个写入器统计写入的字节数、系统调用次数和耗时，用来比较不同存储上哪种方式更快
+ *
+ * @author DaHui
+ */
+abstract class DownloadWriter implements Closeable
+{
+
+    //内存映射每次映射的大小，避免一次映射整个大文件占用过多地址空间
+    private static final long MAPPED_WINDOW = 8 * 1024 * 1024;
+    //缓存的DirectByteBuffer个数上限
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final ConcurrentLinkedQueue<ByteBuffer> sBufferPool = new ConcurrentLinkedQueue<>();
+
+    protected final RandomAccessFile mAccessFile;
+    protected final ByteBuffer mBuffer;
+    //写入的字节数
+    protected long mBytes;
+    //写文件的系统调用次数（write、seek、mmap、msync）
+    protected long mCalls;
+    //写文件的耗时
+    protected long mNanos;
+
+    private DownloadWriter(File file, ByteBuffer buffer) throws IOException
+    {
+        mAccessFile = new RandomAccessFile(file, "rw");
+        mBuffer = buffer;
+    }
+
+    /**
+     * 创建写入器
+     *
+     * @param mode       DownloadControl.WRITE_MODE_*
+     * @param file       临时文件
+     * @param totalSize  文件总大小，未知时小于等于0，这时内存映射方式改为FileChannel方式
+     * @param bufferSize 读写缓冲区大小
+     */
+    static DownloadWriter open(int mode, File file, long totalSize, int bufferSize) throws IOException
+    {
+        if (mode == DownloadControl.WRITE_MODE_MAPPED && totalSize > 0)
+        {
+            return new MappedWriter(file, totalSize, bufferSize);
+        } else if (mode == DownloadControl.WRITE_MODE_CHANNEL || mode == DownloadControl.WRITE_MODE_MAPPED)
+        {
+            return new ChannelWriter(file, bufferSize);
+        }
+        return new RandomAccessWriter(file, bufferSize);
+    }
+
+    private static ByteBuffer acquireDirectBuffer(int size)
+    {
+        ByteBuffer buffer;
+        while ((buffer = sBufferPool.poll()) != null)
+        {
+            if (buffer.capacity() == size)
+            {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private static void releaseDirectBuffer(ByteBuffer buffer)
+    {
+        if (sBufferPool.size() < MAX_POOLED_BUFFERS)
+        {
+            sBufferPool.offer(buffer);
+        }
+    }
+
+    /**
+     * 读取网络数据用的缓冲区，写入器关闭后不能再使用
+     */
+    ByteBuffer buffer()
+    {
+        return mBuffer;
+    }
+
+    /**
+     * 把buffer中剩余的数据全部写入到文件的position位置
+     */
+    final void write(ByteBuffer buffer, long position) throws IOException
+    {
+        long start = System.nanoTime();
+        int count = buffer.remaining();
+        doWrite(buffer, position);
+        mBytes += count;
+        mNanos += System.nanoTime() - start;
+    }
+
+    protected abstract void doWrite(ByteBuffer buffer, long position) throws IOException;
+
+    long getBytes()
+    {
+        return mBytes;
+    }
+
+    long getCalls()
+    {
+        return mCalls;
+    }
+
+    long getNanos()
+    {
+        return mNanos;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mAccessFile.close();
+    }
+
+    /**
+     * 原来的写入方式，堆内缓冲区 + RandomAccessFile.write
+     */
+    private static final class RandomAccessWriter extends DownloadWriter
+    {
+
+        private long mPosition = -1;
+
+        RandomAccessWriter(File file, int bufferSize) throws IOException
+        {
+            super(file, ByteBuffer.allocate(bufferSize));
+        }
+
+        @Override
+        protected void doWrite(ByteBuffer buffer, long position) throws IOException
+        {
+            if (position != mPosition)
+            {
+                mAccessFile.seek(position);
+                mCalls++;
+            }
+            int count = buffer.remaining();
+            mAccessFile.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+            buffer.position(buffer.limit());
+            mPosition = position + count;
+            mCalls++;
+        }
+    }
+
+    /**
+     * FileChannel按位置写入，使用复用的DirectByteBuffer，不需要seek，也省掉一次堆内存拷贝
+     */
+    private static final class ChannelWriter extends DownloadWriter
+    {
+
+        private final FileChannel mChannel;
+
+        ChannelWriter(File file, int bufferSize) throws IOException
+        {
+            super(file, acquireDirectBuffer(bufferSize));
+            mChannel = mAccessFile.getChannel();
+        }
+
+        @Override
+        protected void doWrite(ByteBuffer buffer, long position) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                position += mChannel.write(buffer, position);
+                mCalls++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            releaseDirectBuffer(mBuffer);
+            super.close();
+        }
+    }
+
+    /**
+     * 内存映射写入，按窗口映射文件，写入只是内存拷贝，关闭时统一刷到存储上
+     */
+    private static final class MappedWriter extends DownloadWriter
+    {
+
+        private final FileChannel mChannel;
+        private final long mTotalSize;
+        private MappedByteBuffer mMap;
+        private long mMapStart;
+
+        MappedWriter(File file, long totalSize, int bufferSize) throws IOException
+        {
+            super(file, acquireDirectBuffer(bufferSize));
+            mChannel = mAccessFile.getChannel();
+            mTotalSize = totalSize;
+        }
+
+        @Override
+        protected void doWrite(ByteBuffer buffer, long position) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                if (mMap == null || position < mMapStart || position >= mMapStart + mMap.capacity())
+                {
+                    remap(position);
+                }
+                int offset = (int) (position - mMapStart);
+                int count = Math.min(buffer.remaining(), mMap.capacity() - offset);
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + count);
+                mMap.position(offset);
+                mMap.put(buffer);
+                buffer.limit(limit);
+                position += count;
+            }
+        }
+
+        private void remap(long position) throws IOException
+        {
+            if (position >= mTotalSize)
+            {
+                throw new IOException("write beyond file size " + mTotalSize);
+            }
+            force();
+            mMapStart = position;
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(MAPPED_WINDOW, mTotalSize - position));
+            mCalls++;
+        }
+
+        private void force()
+        {
+            if (mMap != null)
+            {
+                mMap.force();
+                mCalls++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            long start = System.nanoTime();
+            force();
+            mNanos += System.nanoTime() - start;
+            mMap = null;
+            releaseDirectBuffer(mBuffer);
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.handsmap.util.download;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 临时文件预分配，依赖Android的系统调用，和写入器分开，写入器和SegmentCopier可以在普通JVM上使用
+ *
+ * @author DaHui
+ */
+final class FilePreallocator
+{
+
+    private FilePreallocator()
+    {
+    }
+
+    /**
+     * 把临时文件预分配到完整大小，减少边下载边增长造成的碎片；
+     * Android 5.0以上使用posix_fallocate真正分配磁盘块，之前的版本只能设置文件长度
+     *
+     * @return 磁盘块已经分配时返回true
+     * @throws IOException 空间不足或者文件不能打开
+     */
+    static boolean preallocate(File file, long length) throws IOException
+    {
+        RandomAccessFile accessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            {
+                try
+                {
+                    Os.posix_fallocate(accessFile.getFD(), 0, length);
+                    return true;
+                } catch (ErrnoException e)
+                {
+                    if (e.errno == OsConstants.ENOSPC)
+                    {
+                        throw new IOException("no space for " + length + " bytes");
+                    }
+                    // 文件系统不支持（比如部分SD卡上的FAT），下面只设置长度
+                }
+            }
+            if (accessFile.length() < length)
+            {
+                accessFile.setLength(length);
+            }
+            return false;
+        } finally
+        {
+            accessFile.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.handsmap.util.download;
+
+import android.os.Handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载进度合并上报
+ * <p/>
+ * 下载线程每次写入只累加计数器，进度线程按时间间隔检查计数器，变化超过最小字节数时才回调，
+ * 结束时补发一次最终进度；每次检查同时对下载速度采样，速度明显下降（停顿）时即使字节数没有变化也回调
+ *
+ * @author DaHui
+ */
+class ProgressReporter implements Runnable
+{
+
+    public interface Callback
+    {
+        /**
+         * 在进度线程中回调
+         *
+         * @param bytes 本次已经下载的大小
+         */
+        public void onProgress(long bytes);
+    }
+
+    //默认上报间隔
+    static final long DEFAULT_INTERVAL_MILLIS = 200;
+    //默认两次上报之间最少下载的字节数
+    static final long DEFAULT_MIN_BYTES = 64 * 1024;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final DownloadEngine mEngine;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final long mIntervalMillis;
+    private final long mMinBytes;
+    //上次上报的大小，只在进度线程中访问
+    private long mReportedBytes;
+    //上次累计到下载引擎的大小，只在进度线程中访问
+    private long mSampledBytes;
+    //上次上报时的速度，只在进度线程中访问
+    private long mReportedSpeed;
+    private final SpeedEstimator mSpeed = new SpeedEstimator(SpeedEstimator.DEFAULT_TIME_CONSTANT_MILLIS);
+    private volatile boolean mRunning;
+
+    private final Runnable mFinalReport = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            report(true);
+        }
+    };
+
+    ProgressReporter(DownloadEngine engine, Handler handler, long intervalMillis, long minBytes, Callback callback)
+    {
+        mEngine = engine;
+        mHandler = handler;
+        mIntervalMillis = intervalMillis;
+        mMinBytes = minBytes;
+        mCallback = callback;
+    }
+
+    /**
+     * 下载线程调用，只累加计数
+     */
+    void add(long bytes)
+    {
+        mBytes.addAndGet(bytes);
+    }
+
+    long get()
+    {
+        return mBytes.get();
+    }
+
+    /**
+     * 当前下载速度，字节/秒
+     */
+    long getSpeed()
+    {
+        return mSpeed.getBytesPerSecond();
+    }
+
+    void start()
+    {
+        mSpeed.reset(mBytes.get());
+        mRunning = true;
+        mHandler.postDelayed(this, mIntervalMillis);
+    }
+
+    /**
+     * 停止定时检查，补发最终进度
+     */
+    void stop()
+    {
+        mRunning = false;
+        mHandler.removeCallbacks(this);
+        mHandler.post(mFinalReport);
+    }
+
+    @Override
+    public void run()
+    {
+        if (!mRunning)
+        {
+            return;
+        }
+        report(false);
+        mHandler.postDelayed(this, mIntervalMillis);
+    }
+
+    private void report(boolean force)
+    {
+        long bytes = mBytes.get();
+        mEngine.addTransferredBytes(bytes - mSampledBytes);
+        mSampledBytes = bytes;
+        mSpeed.sample(bytes);
+        long speed = mSpeed.getBytesPerSecond();
+        long delta = bytes - mReportedBytes;
+        if (delta >= mMinBytes || (force && delta != 0) || speed < mReportedSpeed / 2)
+        {
+            mReportedBytes = bytes;
+            mReportedSpeed = speed;
+            mCallback.onProgress(bytes);
+        }
+    }
+}
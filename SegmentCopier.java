@@ -0,0 +1,106 @@
+package com.handsmap.util.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * 下载的核心循环：把网络数据写入到分段所在的位置
+ * <p/>
+ * 不依赖Android，中断、限速和进度都通过Listener回调，循环中不分配内存；需要校验时同时按顺序更新文件摘要，
+ * 设置了后处理阶段时同时交给后处理阶段，两者都在数据写入文件、位置前进之后才更新；
+ * 可以在普通JVM上用内存数据或者本地连接做输入，单独比较不同缓冲区大小和写入方式的吞吐量
+ *
+ * @author DaHui
+ */
+final class SegmentCopier
+{
+
+    interface Listener
+    {
+        /**
+         * 每次读取之前检查，返回true时停止
+         */
+        public boolean isStopped();
+
+        /**
+         * 从网络读到数据、写文件之前调用，限速在这里等待
+         */
+        public void onRead(int bytes);
+
+        /**
+         * 数据写入文件之后调用
+         */
+        public void onWritten(int bytes);
+
+        /**
+         * 循环结束（包括出错）时调用
+         *
+         * @param readNanos 读取网络数据的总时间，不包括写文件和限速等待
+         */
+        public void onFinished(long readNanos);
+    }
+
+    private SegmentCopier()
+    {
+    }
+
+    /**
+     * 复制直到分段下载完成、数据读完或者被停止
+     *
+     * @param digest 写入的数据同时更新到摘要，不需要时为null
+     * @param stage  写入的数据同时交给后处理阶段，不需要时为null
+     * @return 本次写入的大小
+     */
+    static long copy(InputStream inputStream, DownloadWriter writer, DownloadSegment segment, MessageDigest digest,
+                     DownloadStage stage, Listener listener) throws IOException
+    {
+        ReadableByteChannel channel = Channels.newChannel(inputStream);
+        ByteBuffer buffer = writer.buffer();
+        long totalCount = 0;
+        long readNanos = 0;
+        try
+        {
+            while (!listener.isStopped() && !segment.isComplete())
+            {
+                buffer.clear();
+                long remaining = segment.length() - segment.downloaded;
+                if (remaining < buffer.capacity())
+                {
+                    buffer.limit((int) remaining);
+                }
+                long readStart = System.nanoTime();
+                int readCount = channel.read(buffer);
+                readNanos += System.nanoTime() - readStart;
+                if (readCount == -1)
+                {
+                    break;
+                }
+                listener.onRead(readCount);
+                buffer.flip();
+                writer.write(buffer, segment.position());
+                segment.downloaded += readCount;
+                totalCount += readCount;
+                // 写入成功之后才更新摘要和后处理阶段，写文件出错时摘要和位置仍然一致
+                if (digest != null)
+                {
+                    buffer.rewind();
+                    digest.update(buffer);
+                }
+                if (stage != null)
+                {
+                    buffer.rewind();
+                    stage.write(buffer);
+                }
+                listener.onWritten(readCount);
+            }
+        } finally
+        {
+            listener.onFinished(readNanos);
+        }
+        return totalCount;
+    }
+}
@@ -0,0 +1,96 @@
+package com.handsmap.util.download;
+
+/**
+ * 下载速度估计，按时间加权的指数移动平均（EWMA）
+ * <p/>
+ * 只在进度线程中按上报间隔采样，不在每次写入时计算，也不分配内存；
+ * 下载停顿时采样到的瞬时速度为0，估计的速度会在几个时间常数内降下来
+ *
+ * @author DaHui
+ */
+class SpeedEstimator
+{
+
+    //默认时间常数，越大越平滑，越小对停顿越敏感
+    static final long DEFAULT_TIME_CONSTANT_MILLIS = 3000;
+    //剩余时间未知
+    static final long UNKNOWN = -1;
+
+    private final double mTimeConstantNanos;
+    private long mLastBytes;
+    private long mLastNanos;
+    private boolean mSampled;
+    //字节/纳秒
+    private double mRate;
+    private volatile long mBytesPerSecond;
+
+    SpeedEstimator(long timeConstantMillis)
+    {
+        mTimeConstantNanos = timeConstantMillis * 1000000.0;
+    }
+
+    /**
+     * 开始下载时调用，之前的速度作废
+     */
+    void reset(long bytes)
+    {
+        mLastBytes = bytes;
+        mLastNanos = System.nanoTime();
+        mSampled = false;
+        mRate = 0;
+        mBytesPerSecond = 0;
+    }
+
+    /**
+     * 采样，只在进度线程中调用
+     *
+     * @param bytes 累计下载的大小
+     */
+    void sample(long bytes)
+    {
+        long now = System.nanoTime();
+        long elapsed = now - mLastNanos;
+        if (elapsed <= 0)
+        {
+            return;
+        }
+        double instant = (bytes - mLastBytes) / (double) elapsed;
+        if (!mSampled)
+        {
+            // 第一个采样直接作为初始值，避免从0慢慢爬升
+            mRate = instant;
+            mSampled = true;
+        } else
+        {
+            double alpha = 1 - Math.exp(-elapsed / mTimeConstantNanos);
+            mRate += alpha * (instant - mRate);
+        }
+        mLastBytes = bytes;
+        mLastNanos = now;
+        mBytesPerSecond = (long) (mRate * 1000000000L);
+    }
+
+    /**
+     * 当前速度，任意线程可以调用
+     *
+     * @return 字节/秒
+     */
+    long getBytesPerSecond()
+    {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * 按指定速度计算剩余时间
+     *
+     * @return 毫秒，速度为0或者剩余大小未知时返回UNKNOWN
+     */
+    static long remainingMillis(long remainingBytes, long bytesPerSecond)
+    {
+        if (remainingBytes < 0 || bytesPerSecond <= 0)
+        {
+            return UNKNOWN;
+        }
+        return remainingBytes * 1000 / bytesPerSecond;
+    }
+}
@@ -0,0 +1,114 @@
+package com.handsmap.util.download;
+
+import com.handsmap.util.common.FileInfoUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 存储空间预留账本
+ * <p/>
+ * 每个任务知道文件大小后预留还需要的空间，可用空间减去其他任务的预留不够时直接失败，
+ * 避免同时下载的任务都通过检查后在下载过程中才发现空间不足。预留一直保持到任务结束，随下载进度减少。
+ * 临时文件预分配成功后这部分空间已经从可用空间中扣掉，检查其他任务时不再重复减去；
+ * 可用空间在锁内读取，两个任务同时开始时后检查的一定能看到先预留的
+ * <p/>
+ * 等待中的任务不预留：队列按优先级出队，为还没开始的任务扣掉空间只会让马上开始的任务失败，
+ * 而等待的任务开始时自己也会检查
+ *
+ * @author DaHui
+ */
+class StorageLedger
+{
+
+    private static final class Reservation
+    {
+        long bytes;
+        //临时文件已经预分配，可用空间中已经扣掉了
+        boolean allocated;
+    }
+
+    //按URL记录的预留
+    private final Map<String, Reservation> mReservations = new HashMap<>();
+
+    /**
+     * 为任务预留空间，同一个URL再次预留时替换原来的预留
+     *
+     * @param bytes 还需要的字节数
+     * @return 空间不够时返回false，不做预留
+     */
+    synchronized boolean reserve(String url, long bytes)
+    {
+        long others = 0;
+        for (Map.Entry<String, Reservation> entry : mReservations.entrySet())
+        {
+            Reservation reservation = entry.getValue();
+            if (!reservation.allocated && !entry.getKey().equals(url))
+            {
+                others += reservation.bytes;
+            }
+        }
+        if (bytes > FileInfoUtils.getAvailableStorage() - others)
+        {
+            return false;
+        }
+        Reservation reservation = new Reservation();
+        reservation.bytes = bytes;
+        mReservations.put(url, reservation);
+        return true;
+    }
+
+    /**
+     * 继续下载时临时文件已经预分配到完整大小，需要的空间早已从可用空间中扣掉，
+     * 不再检查可用空间，直接记为已分配的预留
+     */
+    synchronized void reserveAllocated(String url, long bytes)
+    {
+        Reservation reservation = new Reservation();
+        reservation.bytes = bytes;
+        reservation.allocated = true;
+        mReservations.put(url, reservation);
+    }
+
+    /**
+     * 临时文件已经预分配，预留保留到任务结束，但不再从可用空间中重复减去
+     */
+    synchronized void markAllocated(String url)
+    {
+        Reservation reservation = mReservations.get(url);
+        if (reservation != null)
+        {
+            reservation.allocated = true;
+        }
+    }
+
+    /**
+     * 下载过程中更新还需要的字节数，没有预留时忽略
+     */
+    synchronized void update(String url, long bytes)
+    {
+        Reservation reservation = mReservations.get(url);
+        if (reservation != null)
+        {
+            reservation.bytes = Math.max(0, bytes);
+        }
+    }
+
+    synchronized void release(String url)
+    {
+        mReservations.remove(url);
+    }
+
+    /**
+     * 所有正在下载的任务还需要的空间
+     */
+    synchronized long getReserved()
+    {
+        long reserved = 0;
+        for (Reservation reservation : mReservations.values())
+        {
+            reserved += reservation.bytes;
+        }
+        return reserved;
+    }
+}
@@ -0,0 +1,321 @@
+package com.handsmap.util.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在单独线程中以输入流方式处理下载数据的后处理阶段
+ * <p/>
+ * 下载线程把数据复制到有界队列中，处理线程从输入流中读取；队列满时下载线程等待，处理速度跟不上时下载也会变慢。
+ * 继续下载时输入流先从临时文件中读出已经下载的部分，再接上网络数据，子类看到的总是从头开始的完整数据。
+ * 数据块读完后放回空闲池给下载线程复用，正常下载时不再为每次写入分配内存
+ *
+ * @author DaHui
+ */
+public abstract class StreamingStage implements DownloadStage
+{
+
+    private static final ThreadFactory THREAD_FACTORY = DownloadEngine.newThreadFactory("DownloadStage");
+    //队列中最多缓存的数据块数
+    private static final int QUEUE_CAPACITY = 16;
+    //数据块大小，更大的写入拆成几块
+    private static final int CHUNK_SIZE = 16 * 1024;
+    //等待队列时检查是否出错或者放弃的间隔
+    private static final long POLL_MILLIS = 100;
+    //数据结束的标记
+    private static final Chunk EOF = new Chunk(0);
+
+    private BlockingQueue<Chunk> mQueue;
+    //读完的数据块，队列中的加上两个线程各自正在用的一块，不会超过这么多
+    private final BlockingQueue<Chunk> mFreeChunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+    private Thread mThread;
+    private volatile boolean mAborted;
+    private volatile Throwable mError;
+
+    /**
+     * 在处理线程中调用，读取下载的数据直到结束
+     *
+     * @param in       从文件开头开始的数据，放弃时读取会抛出IOException
+     * @param source   下载的临时文件
+     * @param position 这次开始时已经下载的大小，为0时之前保存的断点已经无效
+     */
+    protected abstract void process(InputStream in, File source, long position) throws IOException;
+
+    @Override
+    public void open(final File source, final long position) throws IOException
+    {
+        abort();
+        mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        mAborted = false;
+        mError = null;
+        final InputStream in = new StageInputStream(source, position, mQueue, mFreeChunks);
+        mThread = THREAD_FACTORY.newThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    process(in, source, position);
+                } catch (Throwable e)
+                {
+                    mError = e;
+                } finally
+                {
+                    try
+                    {
+                        in.close();
+                    } catch (IOException ignored)
+                    {
+                    }
+                }
+            }
+        });
+        mThread.start();
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            Chunk chunk = mFreeChunks.poll();
+            if (chunk == null)
+            {
+                chunk = new Chunk(CHUNK_SIZE);
+            }
+            chunk.length = Math.min(buffer.remaining(), CHUNK_SIZE);
+            buffer.get(chunk.data, 0, chunk.length);
+            put(chunk);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        if (mThread == null)
+        {
+            return;
+        }
+        put(EOF);
+        join();
+        if (mError != null)
+        {
+            throw mError instanceof IOException ? (IOException) mError : new IOException(mError);
+        }
+    }
+
+    @Override
+    public void abort()
+    {
+        if (mThread == null)
+        {
+            return;
+        }
+        mAborted = true;
+        mQueue.clear();
+        join();
+    }
+
+    private void put(Chunk chunk) throws IOException
+    {
+        try
+        {
+            while (!mQueue.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS))
+            {
+                checkAlive();
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        checkAlive();
+    }
+
+    /**
+     * 处理线程已经结束时不再接收数据；正常结束（比如压缩包后面还有多余的数据）时忽略后面的数据
+     */
+    private void checkAlive() throws IOException
+    {
+        if (mError != null)
+        {
+            throw new IOException("stage failed", mError);
+        }
+        if (!mThread.isAlive())
+        {
+            mQueue.clear();
+        }
+    }
+
+    /**
+     * 等待处理线程结束，处理线程在结束前保存断点
+     */
+    private void join()
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                mThread.join();
+                break;
+            } catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        mThread = null;
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 队列中的数据块，data中前length个字节有效
+     */
+    private static final class Chunk
+    {
+
+        final byte[] data;
+        int length;
+
+        Chunk(int size)
+        {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * 先读临时文件中已经下载的部分，再读队列中的数据
+     */
+    private final class StageInputStream extends InputStream
+    {
+
+        private final File mSource;
+        private final BlockingQueue<Chunk> mChunks;
+        private final BlockingQueue<Chunk> mFree;
+        private InputStream mReplay;
+        private long mReplayRemaining;
+        private Chunk mChunk = EOF;
+        private int mOffset;
+        private boolean mEnd;
+
+        StageInputStream(File source, long position, BlockingQueue<Chunk> chunks, BlockingQueue<Chunk> free)
+        {
+            mSource = source;
+            mReplayRemaining = position;
+            mChunks = chunks;
+            mFree = free;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (mAborted)
+            {
+                throw new IOException("stage aborted");
+            }
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (mReplayRemaining > 0)
+            {
+                return readReplay(b, off, len);
+            }
+            while (mOffset == mChunk.length)
+            {
+                if (mEnd || !nextChunk())
+                {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, mChunk.length - mOffset);
+            System.arraycopy(mChunk.data, mOffset, b, off, count);
+            mOffset += count;
+            return count;
+        }
+
+        private int readReplay(byte[] b, int off, int len) throws IOException
+        {
+            if (mReplay == null)
+            {
+                mReplay = new FileInputStream(mSource);
+            }
+            int count = mReplay.read(b, off, (int) Math.min(len, mReplayRemaining));
+            if (count == -1)
+            {
+                throw new IOException("temp file shorter than expected");
+            }
+            mReplayRemaining -= count;
+            if (mReplayRemaining == 0)
+            {
+                mReplay.close();
+                mReplay = null;
+            }
+            return count;
+        }
+
+        /**
+         * @return 数据已经结束时返回false
+         */
+        private boolean nextChunk() throws IOException
+        {
+            try
+            {
+                Chunk chunk;
+                do
+                {
+                    if (mAborted)
+                    {
+                        throw new IOException("stage aborted");
+                    }
+                    chunk = mChunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } while (chunk == null);
+                if (chunk == EOF)
+                {
+                    mEnd = true;
+                    return false;
+                }
+                if (mChunk != EOF)
+                {
+                    // 上一块已经读完，放回去给下载线程复用，池满时丢弃
+                    mFree.offer(mChunk);
+                }
+                mChunk = chunk;
+                mOffset = 0;
+                return true;
+            } catch (InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (mReplay != null)
+            {
+                mReplay.close();
+                mReplay = null;
+            }
+        }
+    }
+}
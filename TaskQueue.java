@@ -0,0 +1,183 @@
+package com.handsmap.util.download;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 等待下载的队列，按优先级排序，优先级相同时先进先出；
+ * 没有任务或者没有空闲的下载位置时阻塞控制线程，添加任务或者有任务结束时唤醒，不再轮询
+ * <p/>
+ * 删除和修改优先级不在队列中查找，出队时跳过状态已经不是等待下载或者已经重新入队的条目。
+ * 只依赖TaskRegistry和SlotLimit，可以在普通JVM上测试调度延迟
+ *
+ * @author DaHui
+ */
+class TaskQueue<T extends TaskRegistry.Task>
+{
+
+    /**
+     * 同时下载的任务数上限，DownloadControl中是自适应并发控制的当前值
+     */
+    interface SlotLimit
+    {
+        int getLimit();
+    }
+
+    private final TaskRegistry<T> mRegistry;
+    private final SlotLimit mSlotLimit;
+    private PriorityQueue<Entry<T>> taskQueue;
+    private final ReentrantLock lock = new ReentrantLock();
+    //有新任务或者空出下载位置
+    private final Condition available = lock.newCondition();
+    //入队顺序，保证相同优先级先进先出
+    private long sequence;
+    //最近一次空出下载位置的时间
+    private long slotFreedNanos;
+    //最近一次出队的任务可以开始的时间，只在控制线程中访问
+    private long readyNanos;
+
+    TaskQueue(TaskRegistry<T> registry, SlotLimit slotLimit)
+    {
+        mRegistry = registry;
+        mSlotLimit = slotLimit;
+        taskQueue = new PriorityQueue<>(11, new Comparator<Entry<T>>()
+        {
+            @Override
+            public int compare(Entry<T> lhs, Entry<T> rhs)
+            {
+                if (lhs.priority != rhs.priority)
+                {
+                    return lhs.priority > rhs.priority ? -1 : 1;
+                }
+                return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * 调用时不能持有记录的锁，出队时先锁队列再锁记录
+     */
+    public void offer(TaskRegistry.Record<T> record)
+    {
+        lock.lock();
+        try
+        {
+            Entry<T> entry = new Entry<>(record, record.task.getPriority(), sequence++);
+            record.queueEntry = entry;
+            taskQueue.offer(entry);
+            available.signal();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 批量入队，只加一次锁
+     */
+    public void offerAll(List<TaskRegistry.Record<T>> records)
+    {
+        lock.lock();
+        try
+        {
+            for (int i = 0; i < records.size(); i++)
+            {
+                TaskRegistry.Record<T> record = records.get(i);
+                Entry<T> entry = new Entry<>(record, record.task.getPriority(), sequence++);
+                record.queueEntry = entry;
+                taskQueue.offer(entry);
+            }
+            available.signal();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出下一个可以开始下载的任务并切换为下载中，没有时一直阻塞
+     *
+     * @return 任务记录，线程被中断时返回null
+     */
+    public TaskRegistry.Record<T> poll()
+    {
+        lock.lock();
+        try
+        {
+            while (true)
+            {
+                if (mRegistry.count(TaskRegistry.STATE_RUNNING) < mSlotLimit.getLimit())
+                {
+                    Entry<T> entry;
+                    while ((entry = taskQueue.poll()) != null)
+                    {
+                        TaskRegistry.Record<T> record = entry.record;
+                        synchronized (record)
+                        {
+                            if (record.queueEntry == entry
+                                    && record.transition(TaskRegistry.STATE_QUEUED, TaskRegistry.STATE_RUNNING))
+                            {
+                                record.queueEntry = null;
+                                // 入队时有空位就是入队的时间，否则是最近一次空出位置的时间
+                                readyNanos = Math.max(record.queuedNanos, slotFreedNanos);
+                                return record;
+                            }
+                        }
+                    }
+                }
+                available.await();
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最近一次poll返回的任务可以开始下载的时间，和开始的时间相减就是调度本身的延迟，不包括等待空位
+     */
+    public long getReadyNanos()
+    {
+        return readyNanos;
+    }
+
+    /**
+     * 正在下载的任务结束（完成、出错、暂停）后调用，唤醒控制线程
+     */
+    public void signalSlotFreed()
+    {
+        lock.lock();
+        try
+        {
+            slotFreedNanos = System.nanoTime();
+            available.signal();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 队列中的任务，入队时记录优先级，修改优先级需要重新入队
+     */
+    private static final class Entry<T extends TaskRegistry.Task>
+    {
+        final TaskRegistry.Record<T> record;
+        final int priority;
+        final long sequence;
+
+        Entry(TaskRegistry.Record<T> record, int priority, long sequence)
+        {
+            this.record = record;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
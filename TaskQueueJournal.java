@@ -0,0 +1,486 @@
+package com.handsmap.util.download;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.handsmap.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 下载队列的追加日志，进程被杀掉后Service重新创建时恢复等待、暂停和出错的任务以及排队顺序
+ * <p/>
+ * 每条记录是[长度][内容][CRC32]，只在文件末尾追加；读取时遇到不完整或者校验不对的记录就截断到最后一条完整的记录。
+ * 记录数远多于有效任务数时在后台线程中压缩：把当前的任务重新写到新文件再替换
+ *
+ * @author DaHui
+ */
+class TaskQueueJournal
+{
+
+    private static final String TAG = TaskQueueJournal.class.getSimpleName();
+    static final String FILE_NAME = "download_queue.journal";
+    //等待下载，包括进程结束时正在下载的任务
+    static final int STATE_QUEUED = 0;
+    static final int STATE_PAUSED = 1;
+    static final int STATE_FAILED = 2;
+    private static final int OP_ADD = 1;
+    private static final int OP_STATE = 2;
+    private static final int OP_PRIORITY = 3;
+    private static final int OP_REMOVE = 4;
+    //单条记录的最大长度，超过时认为文件已损坏
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    //记录数超过有效任务数的这个倍数并且不少于COMPACT_MIN_RECORDS时压缩
+    private static final int COMPACT_FACTOR = 4;
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    /**
+     * 日志中的一个任务
+     */
+    static final class Entry
+    {
+        final String url;
+        int priority;
+        int segmentCount;
+        //没有设置摘要时为null
+        String algorithm;
+        String digest;
+        //边下载边解压时解压到的目录，没有时为null
+        String extractDirectory;
+        //增量更新的块校验清单地址，没有时为null
+        String deltaManifestUrl;
+        int state = STATE_QUEUED;
+
+        Entry(String url)
+        {
+            this.url = url;
+        }
+    }
+
+    interface RestoreCallback
+    {
+        /**
+         * 在日志线程中回调
+         *
+         * @param entries 按加入顺序排列的任务
+         */
+        public void onRestored(List<Entry> entries);
+    }
+
+    private final File mFile;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    //以下字段只在日志线程中访问
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecordBuffer);
+    private final CRC32 mCrc = new CRC32();
+    private DataOutputStream mOut;
+    private int mRecordCount;
+    private boolean mLoaded;
+
+    TaskQueueJournal(File file)
+    {
+        mFile = file;
+        mThread = new HandlerThread("DownloadQueueJournal", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    void add(final String url, final int priority, final int segmentCount, final String algorithm,
+             final String digest, final String extractDirectory, final String deltaManifestUrl)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ensureLoaded();
+                Entry entry = new Entry(url);
+                entry.priority = priority;
+                entry.segmentCount = segmentCount;
+                entry.algorithm = algorithm;
+                entry.digest = digest;
+                entry.extractDirectory = extractDirectory;
+                entry.deltaManifestUrl = deltaManifestUrl;
+                applyAdd(entry);
+                append(OP_ADD, entry);
+            }
+        });
+    }
+
+    void updateState(final String url, final int state)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ensureLoaded();
+                Entry entry = mEntries.get(url);
+                if (entry != null && entry.state != state)
+                {
+                    entry.state = state;
+                    append(OP_STATE, entry);
+                }
+            }
+        });
+    }
+
+    void updatePriority(final String url, final int priority)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ensureLoaded();
+                Entry entry = mEntries.get(url);
+                if (entry != null && entry.priority != priority)
+                {
+                    entry.priority = priority;
+                    append(OP_PRIORITY, entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * 任务完成或者删除
+     */
+    void remove(final String url)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ensureLoaded();
+                Entry entry = mEntries.remove(url);
+                if (entry != null)
+                {
+                    append(OP_REMOVE, entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在日志线程中读取日志，回调所有没有结束的任务，不阻塞调用线程
+     */
+    void restore(final RestoreCallback callback)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ensureLoaded();
+                compactIfNeeded();
+                callback.onRestored(new ArrayList<>(mEntries.values()));
+            }
+        });
+    }
+
+    /**
+     * 关闭文件并停止日志线程，之前提交的修改都会写入
+     */
+    void shutdown()
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                closeOutput();
+                mThread.quit();
+            }
+        });
+    }
+
+    private void ensureLoaded()
+    {
+        if (mLoaded)
+        {
+            return;
+        }
+        mLoaded = true;
+        long validLength = 0;
+        if (mFile.exists())
+        {
+            DataInputStream in = null;
+            try
+            {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                while (true)
+                {
+                    int length;
+                    try
+                    {
+                        length = in.readInt();
+                    } catch (EOFException e)
+                    {
+                        break;
+                    }
+                    if (length <= 0 || length > MAX_RECORD_LENGTH)
+                    {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    long crc = in.readInt() & 0xffffffffL;
+                    mCrc.reset();
+                    mCrc.update(payload, 0, length);
+                    if (mCrc.getValue() != crc)
+                    {
+                        break;
+                    }
+                    replay(new DataInputStream(new ByteArrayInputStream(payload)));
+                    validLength += 8 + length;
+                    mRecordCount++;
+                }
+            } catch (IOException e)
+            {
+                // 最后一条记录没有写完整，后面截断
+            } finally
+            {
+                closeQuietly(in);
+            }
+            truncate(validLength);
+        }
+        openOutput();
+    }
+
+    private void replay(DataInputStream in) throws IOException
+    {
+        int op = in.readByte();
+        String url = in.readUTF();
+        switch (op)
+        {
+            case OP_ADD:
+                Entry entry = new Entry(url);
+                entry.priority = in.readInt();
+                entry.segmentCount = in.readInt();
+                entry.algorithm = readNullableUTF(in);
+                entry.digest = readNullableUTF(in);
+                // 旧版本的记录没有后面的字段
+                if (in.available() > 0)
+                {
+                    entry.extractDirectory = readNullableUTF(in);
+                }
+                if (in.available() > 0)
+                {
+                    entry.deltaManifestUrl = readNullableUTF(in);
+                }
+                applyAdd(entry);
+                break;
+            case OP_STATE:
+                Entry stateEntry = mEntries.get(url);
+                int state = in.readByte();
+                if (stateEntry != null)
+                {
+                    stateEntry.state = state;
+                }
+                break;
+            case OP_PRIORITY:
+                Entry priorityEntry = mEntries.get(url);
+                int priority = in.readInt();
+                if (priorityEntry != null)
+                {
+                    priorityEntry.priority = priority;
+                }
+                break;
+            case OP_REMOVE:
+                mEntries.remove(url);
+                break;
+            default:
+                throw new IOException("unknown op " + op);
+        }
+    }
+
+    /**
+     * 重新加入的任务排到最后
+     */
+    private void applyAdd(Entry entry)
+    {
+        mEntries.remove(entry.url);
+        mEntries.put(entry.url, entry);
+    }
+
+    private void append(int op, Entry entry)
+    {
+        if (mOut == null)
+        {
+            return;
+        }
+        try
+        {
+            writeRecord(mOut, op, entry);
+            // 每条记录都交给系统，进程被杀掉也不会丢失
+            mOut.flush();
+            mRecordCount++;
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+        }
+        compactIfNeeded();
+    }
+
+    private void writeRecord(DataOutputStream out, int op, Entry entry) throws IOException
+    {
+        mRecordBuffer.reset();
+        mRecordOut.writeByte(op);
+        mRecordOut.writeUTF(entry.url);
+        switch (op)
+        {
+            case OP_ADD:
+                mRecordOut.writeInt(entry.priority);
+                mRecordOut.writeInt(entry.segmentCount);
+                writeNullableUTF(mRecordOut, entry.algorithm);
+                writeNullableUTF(mRecordOut, entry.digest);
+                writeNullableUTF(mRecordOut, entry.extractDirectory);
+                writeNullableUTF(mRecordOut, entry.deltaManifestUrl);
+                break;
+            case OP_STATE:
+                mRecordOut.writeByte(entry.state);
+                break;
+            case OP_PRIORITY:
+                mRecordOut.writeInt(entry.priority);
+                break;
+        }
+        mRecordOut.flush();
+        mCrc.reset();
+        mCrc.update(mRecordBuffer.toByteArray(), 0, mRecordBuffer.size());
+        out.writeInt(mRecordBuffer.size());
+        mRecordBuffer.writeTo(out);
+        out.writeInt((int) mCrc.getValue());
+    }
+
+    private void compactIfNeeded()
+    {
+        if (mRecordCount < COMPACT_MIN_RECORDS || mRecordCount < mEntries.size() * COMPACT_FACTOR)
+        {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        int count = 0;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            for (Entry entry : mEntries.values())
+            {
+                writeRecord(out, OP_ADD, entry);
+                count++;
+                if (entry.state != STATE_QUEUED)
+                {
+                    writeRecord(out, OP_STATE, entry);
+                    count++;
+                }
+            }
+            out.close();
+            out = null;
+            closeOutput();
+            if (!temp.renameTo(mFile))
+            {
+                throw new IOException("rename " + temp + " failed");
+            }
+            mRecordCount = count;
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+            temp.delete();
+        } finally
+        {
+            closeQuietly(out);
+            if (mOut == null)
+            {
+                openOutput();
+            }
+        }
+    }
+
+    private void truncate(long length)
+    {
+        if (length >= mFile.length())
+        {
+            return;
+        }
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+        } finally
+        {
+            closeQuietly(file);
+        }
+    }
+
+    private void openOutput()
+    {
+        try
+        {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+            mOut = null;
+        }
+    }
+
+    private void closeOutput()
+    {
+        closeQuietly(mOut);
+        mOut = null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            } catch (IOException e)
+            {
+                // ignore
+            }
+        }
+    }
+}
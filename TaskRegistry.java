@@ -0,0 +1,200 @@
+package com.handsmap.util.download;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载任务登记表，按URL保存每个任务的记录和状态
+ * <p/>
+ * 查找和状态切换都是O(1)的，状态使用CAS切换，控制线程、Binder线程和主线程可以同时操作；
+ * 需要同时修改状态和替换任务对象时对记录加锁
+ * <p/>
+ * 只通过Task接口使用任务对象，不依赖DownloadTask（AsyncTask），可以和TaskQueue一起在普通JVM上测试
+ *
+ * @author DaHui
+ */
+class TaskRegistry<T extends TaskRegistry.Task>
+{
+
+    /**
+     * 登记表和等待队列需要的任务信息
+     */
+    interface Task
+    {
+        String getUrl();
+
+        int getPriority();
+    }
+
+    //等待下载
+    static final int STATE_QUEUED = 0;
+    //正在下载
+    static final int STATE_RUNNING = 1;
+    //已暂停
+    static final int STATE_PAUSED = 2;
+    //下载完成
+    static final int STATE_COMPLETED = 3;
+    //下载出错，可以继续下载
+    static final int STATE_FAILED = 4;
+    //已经从登记表中删除
+    static final int STATE_REMOVED = 5;
+    private static final int STATE_COUNT = 6;
+
+    private final ConcurrentHashMap<String, Record<T>> mRecords = new ConcurrentHashMap<>();
+    //正在下载的记录，抢占时只需要遍历正在下载的任务
+    private final Set<Record<T>> mRunning = Collections.newSetFromMap(new ConcurrentHashMap<Record<T>, Boolean>());
+    private final AtomicInteger[] mCounts = new AtomicInteger[STATE_COUNT];
+
+    /**
+     * 一个URL对应的记录，暂停和出错后会替换成新的任务对象
+     */
+    static final class Record<T extends Task>
+    {
+        final String url;
+        private final TaskRegistry<T> mRegistry;
+        private final AtomicInteger mState;
+        //当前的任务对象，修改时需要持有记录的锁
+        volatile T task;
+        //在等待队列中的位置，用来判断队列中的条目是否已经失效
+        volatile Object queueEntry;
+        //最近一次进入等待状态的时间
+        volatile long queuedNanos = System.nanoTime();
+        //出错后重新排队，完成时算作一次恢复
+        volatile boolean recovering;
+
+        private Record(TaskRegistry<T> registry, T task, int state)
+        {
+            this.url = task.getUrl();
+            this.task = task;
+            mRegistry = registry;
+            mState = new AtomicInteger(state);
+        }
+
+        int getState()
+        {
+            return mState.get();
+        }
+
+        /**
+         * 状态从from切换到to，当前状态不是from时返回false
+         */
+        boolean transition(int from, int to)
+        {
+            if (!mState.compareAndSet(from, to))
+            {
+                return false;
+            }
+            mRegistry.onStateChanged(this, from, to);
+            return true;
+        }
+
+        /**
+         * 不管当前是什么状态都切换到to
+         *
+         * @return 切换之前的状态
+         */
+        int transitionFromAny(int to)
+        {
+            int from = mState.getAndSet(to);
+            if (from != to)
+            {
+                mRegistry.onStateChanged(this, from, to);
+            }
+            return from;
+        }
+    }
+
+    TaskRegistry()
+    {
+        for (int i = 0; i < STATE_COUNT; i++)
+        {
+            mCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private void onStateChanged(Record<T> record, int from, int to)
+    {
+        mCounts[from].decrementAndGet();
+        mCounts[to].incrementAndGet();
+        if (from == STATE_RUNNING)
+        {
+            mRunning.remove(record);
+        } else if (to == STATE_RUNNING)
+        {
+            mRunning.add(record);
+        }
+    }
+
+    /**
+     * 登记新任务，状态为等待下载。同一个URL已经有未结束的任务（等待、下载中、暂停）时不登记
+     *
+     * @return 新的记录，已经存在时返回null
+     */
+    Record<T> add(T task)
+    {
+        Record<T> record = new Record<>(this, task, STATE_QUEUED);
+        while (true)
+        {
+            Record<T> existing = mRecords.putIfAbsent(record.url, record);
+            if (existing == null)
+            {
+                mCounts[STATE_QUEUED].incrementAndGet();
+                return record;
+            }
+            int state = existing.getState();
+            if (state == STATE_QUEUED || state == STATE_RUNNING || state == STATE_PAUSED)
+            {
+                return null;
+            }
+            // 已经结束的任务直接替换
+            remove(existing);
+        }
+    }
+
+    Record<T> get(String url)
+    {
+        return mRecords.get(url);
+    }
+
+    /**
+     * 删除记录，状态切换为STATE_REMOVED
+     *
+     * @return 删除之前的状态，记录已经不在登记表中时返回STATE_REMOVED
+     */
+    int remove(Record<T> record)
+    {
+        if (!mRecords.remove(record.url, record))
+        {
+            return STATE_REMOVED;
+        }
+        int from = record.transitionFromAny(STATE_REMOVED);
+        mCounts[STATE_REMOVED].decrementAndGet();
+        return from;
+    }
+
+    int count(int state)
+    {
+        return mCounts[state].get();
+    }
+
+    /**
+     * 还没有结束的任务数（等待、下载中、暂停）
+     */
+    int activeCount()
+    {
+        return count(STATE_QUEUED) + count(STATE_RUNNING) + count(STATE_PAUSED);
+    }
+
+    Collection<Record<T>> running()
+    {
+        return mRunning;
+    }
+
+    Collection<Record<T>> records()
+    {
+        return mRecords.values();
+    }
+}
@@ -0,0 +1,177 @@
+package com.handsmap.util.download;
+
+import com.handsmap.util.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * 边下载边解压zip压缩包，下载完成时压缩包也已经解压完
+ * <p/>
+ * 断点是已经解压完的条目数，保存在临时文件旁边；继续下载时前面的条目只读过不写文件，
+ * 从第一个没有解压完的条目开始重新解压。断点只会比实际少，进程被杀掉时最多重复解压几个条目
+ *
+ * @author DaHui
+ */
+public class ZipExtractStage extends StreamingStage
+{
+
+    private static final String TAG = ZipExtractStage.class.getSimpleName();
+    private static final String CHECKPOINT_SUFFIX = ".extract";
+    private static final int BUFFER_SIZE = 32 * 1024;
+    //每解压这么多个条目保存一次断点，暂停时也会保存
+    private static final int SAVE_INTERVAL = 32;
+
+    private final File mDirectory;
+
+    /**
+     * @param directory 解压到的目录
+     */
+    public ZipExtractStage(File directory)
+    {
+        mDirectory = directory;
+    }
+
+    public File getDirectory()
+    {
+        return mDirectory;
+    }
+
+    @Override
+    protected void process(InputStream in, File source, long position) throws IOException
+    {
+        File checkpoint = new File(source.getPath() + CHECKPOINT_SUFFIX);
+        int extracted = position > 0 ? loadCheckpoint(checkpoint) : 0;
+        int saved = extracted;
+        boolean complete = false;
+        String root = mDirectory.getCanonicalPath() + File.separator;
+        ZipInputStream zip = new ZipInputStream(in);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try
+        {
+            int index = 0;
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null)
+            {
+                if (index >= extracted)
+                {
+                    extract(zip, entry, root, buffer);
+                    extracted = index + 1;
+                    if (extracted - saved >= SAVE_INTERVAL)
+                    {
+                        saveCheckpoint(checkpoint, extracted);
+                        saved = extracted;
+                    }
+                }
+                index++;
+            }
+            complete = true;
+        } finally
+        {
+            if (complete)
+            {
+                checkpoint.delete();
+            } else
+            {
+                saveCheckpoint(checkpoint, extracted);
+            }
+        }
+    }
+
+    private void extract(ZipInputStream zip, ZipEntry entry, String root, byte[] buffer) throws IOException
+    {
+        File file = new File(root, entry.getName());
+        // 条目名中有../时不能写到目录外面
+        if (!file.getCanonicalPath().startsWith(root))
+        {
+            throw new IOException("entry outside target directory: " + entry.getName());
+        }
+        if (entry.isDirectory())
+        {
+            mkdirs(file);
+            return;
+        }
+        mkdirs(file.getParentFile());
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            int count;
+            while ((count = zip.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, count);
+            }
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("mkdirs " + dir + " failed");
+        }
+    }
+
+    private static int loadCheckpoint(File file)
+    {
+        if (!file.exists())
+        {
+            return 0;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt();
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+            return 0;
+        } finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                } catch (IOException ignored)
+                {
+                }
+            }
+        }
+    }
+
+    private static void saveCheckpoint(File file, int extracted)
+    {
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeInt(extracted);
+        } catch (IOException e)
+        {
+            Logger.e(TAG, e.getMessage());
+        } finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                } catch (IOException ignored)
+                {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package com.handsmap.util.download;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 端到端压测，在普通JVM上运行，不需要外部网络
+ * <p/>
+ * 启动本地的StubHttpServer，把上百个任务登记到TaskRegistry并放进TaskQueue，控制线程和DownloadControl.run()一样
+ * 循环poll()，取出的任务交给下载线程按DownloadTask的方式下载：通过DownloadConnectionPool发请求，
+ * 断点续传带Range和If-Range，数据经SegmentCopier和DownloadWriter写入临时文件。
+ * 下载过程中随机暂停正在下载的任务，过一会儿重新排队；出错（断开、响应体不完整、5xx）的任务退避后重试；
+ * 状态切换和DownloadControl相同，任务结束时调用signalSlotFreed()。
+ * 全部结束后逐字节校验文件，输出总吞吐量、排队到开始、调度、暂停、继续下载的延迟和出错恢复情况。
+ * <p/>
+ * 调度用的是真正的TaskQueue和TaskRegistry，同时下载的任务数固定为threads；DownloadTask依赖Android（AsyncTask），
+ * 这里的Job是它的下载流程的简化版，下载路径用的是同一套类。
+ * 参数都是“名字=值”，比如：
+ * <pre>
+ * java -cp &lt;下载库的classes&gt;:httpclient.jar:httpcore.jar:commons-logging.jar com.handsmap.util.download.LoadTest \
+ *     tasks=200 size=1048576 threads=6 latency=30 bandwidth=2097152 drop=0.01 truncate=0.02 error=0.02
+ * </pre>
+ *
+ * @author DaHui
+ */
+public final class LoadTest
+{
+
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static
+    {
+        //任务数
+        DEFAULTS.put("tasks", "120");
+        //每个文件的大小
+        DEFAULTS.put("size", String.valueOf(1024 * 1024));
+        //同时下载的任务数
+        DEFAULTS.put("threads", "6");
+        //服务器响应头之前的延迟，毫秒
+        DEFAULTS.put("latency", "20");
+        //服务器每个连接的带宽，字节/秒，0为不限制
+        DEFAULTS.put("bandwidth", String.valueOf(4 * 1024 * 1024));
+        //服务器注入故障的概率
+        DEFAULTS.put("drop", "0.01");
+        DEFAULTS.put("truncate", "0.02");
+        DEFAULTS.put("error", "0.02");
+        //每隔多少毫秒随机暂停一个正在下载的任务，0为不暂停
+        DEFAULTS.put("pause", "200");
+        //暂停多久后继续下载，毫秒
+        DEFAULTS.put("resume", "100");
+        //每个任务最多重试的次数
+        DEFAULTS.put("retries", "10");
+        DEFAULTS.put("buffer", String.valueOf(DownloadControl.DEFAULT_BUFFER_SIZE));
+        DEFAULTS.put("seed", "1");
+    }
+
+    private final Map<String, String> mOptions;
+    private final StubHttpServer mServer;
+    private final DownloadMetrics mMetrics = new DownloadMetrics();
+    private final DownloadConnectionPool mPool;
+    private final File mDirectory;
+    private final Random mRandom;
+    private final TaskRegistry<Job> mRegistry = new TaskRegistry<>();
+    private final TaskQueue<Job> mQueue;
+    private final ExecutorService mWorkers;
+    private final List<Job> mJobs = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(1);
+    private final CountDownLatch mFinished;
+    private final DownloadMetrics.Histogram mPauseMillis = new DownloadMetrics.Histogram();
+    private final DownloadMetrics.Histogram mResumeMillis = new DownloadMetrics.Histogram();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mPauses = new AtomicLong();
+    private final AtomicLong mRecovered = new AtomicLong();
+    private final AtomicLong mGaveUp = new AtomicLong();
+
+    /**
+     * 一个下载任务，同一时间只在一个下载线程中
+     */
+    private static final class Job implements TaskRegistry.Task
+    {
+        final String name;
+        final String url;
+        final File file;
+        final int priority;
+        final DownloadSegment segment;
+        final DownloadMetrics.TaskTiming timing = new DownloadMetrics.TaskTiming();
+        //登记表中的记录，排队、下载、暂停和出错的状态都在这里
+        TaskRegistry.Record<Job> record;
+        volatile boolean pauseRequested;
+        volatile long pauseRequestNanos;
+        //请求继续下载的时间，不是继续下载时为0
+        volatile long resumeRequestNanos;
+        String etag;
+        int attempts;
+        boolean failed;
+        //所有请求累计下载和写文件的字节数、写文件的时间
+        long bytes;
+        long diskBytes;
+        long diskNanos;
+
+        Job(String name, String url, File file, long size, int priority)
+        {
+            this.name = name;
+            this.url = url;
+            this.file = file;
+            this.priority = priority;
+            this.segment = new DownloadSegment(0, size - 1, 0);
+        }
+
+        @Override
+        public String getUrl()
+        {
+            return url;
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return priority;
+        }
+    }
+
+    private LoadTest(Map<String, String> options) throws IOException
+    {
+        mOptions = options;
+        mRandom = new Random(getLong("seed"));
+        mServer = new StubHttpServer((int) getLong("latency"), getLong("bandwidth"), getDouble("drop"),
+                getDouble("truncate"), getDouble("error"), getLong("seed"));
+        mPool = new DownloadConnectionPool(null, mMetrics);
+        mPool.setMaxConnectionsPerHost((int) getLong("threads"));
+        mDirectory = File.createTempFile("loadtest", "");
+        if (!mDirectory.delete() || !mDirectory.mkdirs())
+        {
+            throw new IOException("mkdirs " + mDirectory + " failed");
+        }
+        mFinished = new CountDownLatch((int) getLong("tasks"));
+        final int threads = (int) getLong("threads");
+        mQueue = new TaskQueue<>(mRegistry, new TaskQueue.SlotLimit()
+        {
+            @Override
+            public int getLimit()
+            {
+                return threads;
+            }
+        });
+        mWorkers = Executors.newFixedThreadPool(threads);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args)
+        {
+            int equals = arg.indexOf('=');
+            if (equals <= 0 || !DEFAULTS.containsKey(arg.substring(0, equals)))
+            {
+                System.err.println("unknown option " + arg + ", options: " + DEFAULTS.keySet());
+                System.exit(2);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        LoadTest test = new LoadTest(options);
+        boolean passed;
+        try
+        {
+            passed = test.run();
+        } finally
+        {
+            test.shutdown();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return 所有任务都下载完成并且内容正确时返回true
+     */
+    private boolean run() throws Exception
+    {
+        mServer.start();
+        Thread control = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatch();
+            }
+        }, "LoadTest-control");
+        control.setDaemon(true);
+        control.start();
+        long pauseInterval = getLong("pause");
+        if (pauseInterval > 0)
+        {
+            mScheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    pauseRandomJob();
+                }
+            }, pauseInterval, pauseInterval, TimeUnit.MILLISECONDS);
+        }
+
+        long size = getLong("size");
+        long start = System.nanoTime();
+        int tasks = (int) getLong("tasks");
+        for (int i = 0; i < tasks; i++)
+        {
+            String name = "file" + i + ".bin";
+            Job job = new Job(name, mServer.url(name, size), new File(mDirectory, name), size,
+                    mRandom.nextInt(3) * 5);
+            job.record = mRegistry.add(job);
+            mJobs.add(job);
+            mQueue.offer(job.record);
+        }
+        mFinished.await();
+        long elapsedNanos = System.nanoTime() - start;
+        mScheduler.shutdownNow();
+        control.interrupt();
+
+        int corrupt = 0;
+        int completed = 0;
+        for (Job job : mJobs)
+        {
+            if (!job.failed)
+            {
+                completed++;
+                if (!verify(job))
+                {
+                    corrupt++;
+                }
+            }
+        }
+        report(tasks, completed, corrupt, elapsedNanos);
+        return completed == tasks && corrupt == 0;
+    }
+
+    /**
+     * 暂停或者出错的任务重新排队，和DownloadControl继续下载一样切换回等待状态
+     */
+    private void enqueue(Job job, int from)
+    {
+        TaskRegistry.Record<Job> record = job.record;
+        synchronized (record)
+        {
+            if (!record.transition(from, TaskRegistry.STATE_QUEUED))
+            {
+                return;
+            }
+            record.queuedNanos = System.nanoTime();
+        }
+        mQueue.offer(record);
+    }
+
+    /**
+     * 和DownloadControl.run()相同的控制循环，取出的任务交给下载线程
+     */
+    private void dispatch()
+    {
+        while (true)
+        {
+            TaskRegistry.Record<Job> record = mQueue.poll();
+            if (record == null)
+            {
+                return;
+            }
+            synchronized (record)
+            {
+                if (record.getState() != TaskRegistry.STATE_RUNNING)
+                {
+                    continue;
+                }
+                long now = System.nanoTime();
+                mMetrics.recordQueueWait(now - record.queuedNanos);
+                mMetrics.recordDispatch(now - mQueue.getReadyNanos());
+                final Job job = record.task;
+                mWorkers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        work(job);
+                    }
+                });
+            }
+        }
+    }
+
+    private void work(Job job)
+    {
+        TaskRegistry.Record<Job> record = job.record;
+        try
+        {
+            download(job);
+        } catch (IOException e)
+        {
+            retry(job, e);
+            return;
+        }
+        if (!job.segment.isComplete())
+        {
+            paused(job);
+        } else
+        {
+            if (job.attempts > 0)
+            {
+                mRecovered.incrementAndGet();
+            }
+            mMetrics.recordTask(job.timing, job.bytes, job.diskBytes, job.diskNanos);
+            record.transition(TaskRegistry.STATE_RUNNING, TaskRegistry.STATE_COMPLETED);
+            mQueue.signalSlotFreed();
+            mFinished.countDown();
+        }
+    }
+
+    /**
+     * 和DownloadTask一样：有进度时带Range和If-Range，206接着写，200从头写
+     */
+    private void download(final Job job) throws IOException
+    {
+        HttpGet httpGet = new HttpGet(job.url);
+        long position = job.segment.position();
+        if (position > 0)
+        {
+            httpGet.addHeader("Range", "bytes=" + position + "-");
+            if (job.etag != null)
+            {
+                httpGet.addHeader("If-Range", job.etag);
+            }
+        }
+        HttpResponse response = mPool.execute(httpGet, job.timing);
+        if (job.resumeRequestNanos != 0)
+        {
+            mResumeMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.resumeRequestNanos));
+            job.resumeRequestNanos = 0;
+        }
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status == HttpStatus.SC_OK)
+        {
+            job.segment.downloaded = 0;
+        } else if (status != HttpStatus.SC_PARTIAL_CONTENT || position == 0)
+        {
+            httpGet.abort();
+            throw new IOException("HTTP " + status);
+        }
+        Header etag = response.getFirstHeader("ETag");
+        job.etag = etag != null ? etag.getValue() : null;
+
+        InputStream in = entity.getContent();
+        DownloadWriter writer = DownloadWriter.open(DownloadControl.WRITE_MODE_CHANNEL, job.file,
+                job.segment.length(), (int) getLong("buffer"));
+        boolean complete = false;
+        try
+        {
+            long count = SegmentCopier.copy(in, writer, job.segment, null, null, new SegmentCopier.Listener()
+            {
+                @Override
+                public boolean isStopped()
+                {
+                    return job.pauseRequested;
+                }
+
+                @Override
+                public void onRead(int bytes)
+                {
+                }
+
+                @Override
+                public void onWritten(int bytes)
+                {
+                }
+
+                @Override
+                public void onFinished(long readNanos)
+                {
+                    job.timing.transferNanos.addAndGet(readNanos);
+                    if (job.pauseRequested)
+                    {
+                        mPauseMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - job.pauseRequestNanos));
+                    }
+                }
+            });
+            mBytes.addAndGet(count);
+            job.bytes += count;
+            complete = job.segment.isComplete();
+        } finally
+        {
+            writer.close();
+            job.diskBytes += writer.getBytes();
+            job.diskNanos += writer.getNanos();
+            if (complete)
+            {
+                // 读完了，连接还给连接池
+                in.close();
+            } else
+            {
+                httpGet.abort();
+            }
+        }
+        if (!complete && !job.pauseRequested)
+        {
+            throw new IOException("truncated at " + job.segment.position());
+        }
+    }
+
+    private void pauseRandomJob()
+    {
+        Object[] running = mRegistry.running().toArray();
+        if (running.length == 0)
+        {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Job job = ((TaskRegistry.Record<Job>) running[mRandom.nextInt(running.length)]).task;
+        job.pauseRequestNanos = System.nanoTime();
+        job.pauseRequested = true;
+    }
+
+    /**
+     * 暂停的任务过一会儿继续下载，重新排队
+     */
+    private void paused(final Job job)
+    {
+        mPauses.incrementAndGet();
+        job.record.transition(TaskRegistry.STATE_RUNNING, TaskRegistry.STATE_PAUSED);
+        mQueue.signalSlotFreed();
+        mScheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                job.pauseRequested = false;
+                job.resumeRequestNanos = System.nanoTime();
+                enqueue(job, TaskRegistry.STATE_PAUSED);
+            }
+        }, getLong("resume"), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 出错后按次数退避，重试次数用完时放弃
+     */
+    private void retry(final Job job, IOException error)
+    {
+        mFailures.incrementAndGet();
+        job.pauseRequested = false;
+        job.record.transition(TaskRegistry.STATE_RUNNING, TaskRegistry.STATE_FAILED);
+        mQueue.signalSlotFreed();
+        if (++job.attempts > getLong("retries"))
+        {
+            System.err.println(job.url + " gave up: " + error.getMessage());
+            job.failed = true;
+            mGaveUp.incrementAndGet();
+            mFinished.countDown();
+            return;
+        }
+        long backoffMillis = Math.min(1000, 50L << Math.min(job.attempts, 5));
+        mScheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                job.resumeRequestNanos = System.nanoTime();
+                enqueue(job, TaskRegistry.STATE_FAILED);
+            }
+        }, backoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean verify(Job job) throws IOException
+    {
+        byte[] actual = new byte[64 * 1024];
+        byte[] expected = new byte[actual.length];
+        InputStream in = new FileInputStream(job.file);
+        try
+        {
+            long offset = 0;
+            int count;
+            while ((count = in.read(actual)) != -1)
+            {
+                StubHttpServer.fill(job.name, offset, expected, count);
+                for (int i = 0; i < count; i++)
+                {
+                    if (actual[i] != expected[i])
+                    {
+                        System.err.println(job.url + " differs at " + (offset + i));
+                        return false;
+                    }
+                }
+                offset += count;
+            }
+            return offset == job.segment.length();
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    private void report(int tasks, int completed, int corrupt, long elapsedNanos)
+    {
+        StringBuilder sb = new StringBuilder();
+        double seconds = elapsedNanos / 1e9;
+        sb.append("tasks=").append(tasks).append(", completed=").append(completed)
+                .append(", gave_up=").append(mGaveUp.get()).append(", corrupt=").append(corrupt).append('\n');
+        sb.append(String.format(Locale.US, "elapsed=%.2fs, bytes=%d, throughput=%.2fMB/s%n",
+                seconds, mBytes.get(), mBytes.get() / seconds / (1024 * 1024)));
+        mPauseMillis.dump(sb, "pause", "ms");
+        mResumeMillis.dump(sb, "resume", "ms");
+        sb.append("pauses=").append(mPauses.get()).append(", failures=").append(mFailures.get())
+                .append(", recovered=").append(mRecovered.get()).append('\n');
+        sb.append("server: requests=").append(mServer.getRequests())
+                .append(", range=").append(mServer.getRangeRequests())
+                .append(", dropped=").append(mServer.getDropped())
+                .append(", truncated=").append(mServer.getTruncated())
+                .append(", 503=").append(mServer.getErrors()).append('\n');
+        sb.append("pool: requests=").append(mPool.getRequestCount())
+                .append(", connections=").append(mPool.getConnectionCount())
+                .append(", reused=").append(mPool.getReusedCount()).append('\n');
+        // 连接池记录的DNS、建立连接、首字节耗时和每个任务的吞吐量，控制线程记录的排队等待（queue_wait）和调度延迟（dispatch）；
+        // 暂停和继续下载由上面统计
+        sb.append("-- DownloadMetrics --\n");
+        mMetrics.dump(sb);
+        System.out.print(sb);
+    }
+
+    private void shutdown() throws IOException
+    {
+        mScheduler.shutdownNow();
+        mWorkers.shutdownNow();
+        mPool.shutdown();
+        mServer.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private long getLong(String name)
+    {
+        return Long.parseLong(mOptions.get(name));
+    }
+
+    private double getDouble(String name)
+    {
+        return Double.parseDouble(mOptions.get(name));
+    }
+}
@@ -0,0 +1,230 @@
+package com.handsmap.util.download;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载核心循环（SegmentCopier）的JMH基准测试，在普通JVM上运行
+ * <p/>
+ * 参数组合：缓冲区大小、写入方式（DownloadControl.WRITE_MODE_*）、是否累加进度、
+ * 输入是内存数据还是本地回环连接；每次操作把PAYLOAD_SIZE字节写入临时文件。
+ * 结果中的bytes是每秒复制的字节数（除以1048576即MB/s），分配速率用GC分析器看gc.alloc.rate和gc.alloc.rate.norm。
+ * <p/>
+ * 和下载库的类一起编译，android.jar只在编译时需要（WRITE_MODE_*是常量），运行时不加载Android的类：
+ * <pre>
+ * javac -cp android.jar:jmh-core.jar:jmh-generator-annprocess.jar:&lt;下载库的classes&gt; -d out SegmentCopierBenchmark.java
+ * java -cp out:&lt;下载库的classes&gt;:jmh-core.jar:jopt-simple.jar:commons-math3.jar \
+ *     org.openjdk.jmh.Main SegmentCopierBenchmark -prof gc
+ * </pre>
+ *
+ * @author DaHui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentCopierBenchmark
+{
+
+    //每次操作复制的大小
+    private static final int PAYLOAD_SIZE = 32 * 1024 * 1024;
+
+    @Param({"8192", "32768", "131072"})
+    public int bufferSize;
+
+    @Param({"" + DownloadControl.WRITE_MODE_RANDOM_ACCESS, "" + DownloadControl.WRITE_MODE_CHANNEL,
+            "" + DownloadControl.WRITE_MODE_MAPPED})
+    public int writeMode;
+
+    @Param({"true", "false"})
+    public boolean progress;
+
+    @Param({"memory", "loopback"})
+    public String source;
+
+    private byte[] mPayload;
+    private File mFile;
+    private LoopbackServer mServer;
+    private InputStream mInput;
+    private Socket mSocket;
+    //和ProgressReporter.add一样，下载线程每次写入后只做一次原子加法
+    private final AtomicLong mProgress = new AtomicLong();
+
+    /**
+     * 每秒复制的字节数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes
+    {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        mPayload = new byte[PAYLOAD_SIZE];
+        new Random(1).nextBytes(mPayload);
+        mFile = File.createTempFile("copier", ".download");
+        if (source.equals("loopback"))
+        {
+            mServer = new LoopbackServer(mPayload);
+            mServer.start();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void openInput() throws IOException
+    {
+        if (mServer != null)
+        {
+            mSocket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+            mInput = mSocket.getInputStream();
+        } else
+        {
+            mInput = new ByteArrayInputStream(mPayload);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeInput() throws IOException
+    {
+        mInput.close();
+        if (mSocket != null)
+        {
+            mSocket.close();
+            mSocket = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        if (mServer != null)
+        {
+            mServer.close();
+        }
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long copy(Bytes bytes) throws IOException
+    {
+        DownloadSegment segment = new DownloadSegment(0, PAYLOAD_SIZE - 1, 0);
+        DownloadWriter writer = DownloadWriter.open(writeMode, mFile, PAYLOAD_SIZE, bufferSize);
+        long count;
+        try
+        {
+            count = SegmentCopier.copy(mInput, writer, segment, null, null, new SegmentCopier.Listener()
+            {
+                @Override
+                public boolean isStopped()
+                {
+                    return false;
+                }
+
+                @Override
+                public void onRead(int count)
+                {
+                }
+
+                @Override
+                public void onWritten(int count)
+                {
+                    if (progress)
+                    {
+                        mProgress.addAndGet(count);
+                    }
+                }
+
+                @Override
+                public void onFinished(long readNanos)
+                {
+                }
+            });
+        } finally
+        {
+            writer.close();
+        }
+        bytes.bytes += count;
+        return count;
+    }
+
+    /**
+     * 本地回环上的服务端，每个连接写一遍数据后关闭，模拟没有延迟和限速的网络
+     */
+    static final class LoopbackServer extends Thread
+    {
+
+        private final ServerSocket mServerSocket;
+        private final byte[] mPayload;
+
+        LoopbackServer(byte[] payload) throws IOException
+        {
+            super("LoopbackServer");
+            setDaemon(true);
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            mPayload = payload;
+        }
+
+        int getPort()
+        {
+            return mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public void run()
+        {
+            while (!mServerSocket.isClosed())
+            {
+                try
+                {
+                    Socket socket = mServerSocket.accept();
+                    try
+                    {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(mPayload);
+                        out.flush();
+                    } finally
+                    {
+                        socket.close();
+                    }
+                } catch (IOException ignored)
+                {
+                    // 客户端提前关闭或者服务端已经关闭
+                }
+            }
+        }
+
+        void close() throws IOException
+        {
+            mServerSocket.close();
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.handsmap.util.download;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 压测用的本地HTTP服务器，只监听回环地址，不需要外部网络
+ * <p/>
+ * 地址是/files/大小/名字，内容由名字和位置算出来，不占内存，下载完可以逐字节校验。
+ * 支持长连接、Range（bytes=a-b、bytes=a-）、ETag和If-Range；可以设置响应头之前的延迟、
+ * 每个连接的带宽，以及按概率注入故障：不响应直接断开、响应体发一半断开、返回503
+ *
+ * @author DaHui
+ */
+final class StubHttpServer implements Closeable
+{
+
+    private static final String PATH_PREFIX = "/files/";
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final int mLatencyMillis;
+    private final long mBytesPerSecond;
+    private final double mDropRate;
+    private final double mTruncateRate;
+    private final double mErrorRate;
+    private final Random mRandom;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mRangeRequests = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mTruncated = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    /**
+     * @param latencyMillis  收到请求到发出响应头的延迟
+     * @param bytesPerSecond 每个连接的带宽，小于等于0时不限制
+     * @param dropRate       不响应直接断开的概率
+     * @param truncateRate   响应体发一半断开的概率
+     * @param errorRate      返回503的概率
+     */
+    StubHttpServer(int latencyMillis, long bytesPerSecond, double dropRate, double truncateRate, double errorRate,
+                   long seed) throws IOException
+    {
+        mLatencyMillis = latencyMillis;
+        mBytesPerSecond = bytesPerSecond;
+        mDropRate = dropRate;
+        mTruncateRate = truncateRate;
+        mErrorRate = errorRate;
+        mRandom = new Random(seed);
+        mServerSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "StubHttpServer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void start()
+    {
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        });
+    }
+
+    String url(String name, long size)
+    {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + PATH_PREFIX + size + "/" + name;
+    }
+
+    static String etag(String name, long size)
+    {
+        return "\"" + name + "-" + size + "\"";
+    }
+
+    /**
+     * 文件在offset开始的内容
+     */
+    static void fill(String name, long offset, byte[] buffer, int length)
+    {
+        int seed = name.hashCode();
+        for (int i = 0; i < length; i++)
+        {
+            long position = offset + i;
+            buffer[i] = (byte) (position * 31 + seed ^ position >>> 9);
+        }
+    }
+
+    long getRequests()
+    {
+        return mRequests.get();
+    }
+
+    long getRangeRequests()
+    {
+        return mRangeRequests.get();
+    }
+
+    long getDropped()
+    {
+        return mDropped.get();
+    }
+
+    long getTruncated()
+    {
+        return mTruncated.get();
+    }
+
+    long getErrors()
+    {
+        return mErrors.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while (!mServerSocket.isClosed())
+        {
+            final Socket socket;
+            try
+            {
+                socket = mServerSocket.accept();
+            } catch (IOException e)
+            {
+                // 已经关闭
+                return;
+            }
+            mExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * 一个连接上依次处理请求，直到客户端关闭或者注入断开
+     */
+    private void serve(Socket socket)
+    {
+        try
+        {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            while (handle(in, out, buffer))
+            {
+                out.flush();
+            }
+        } catch (IOException ignored)
+        {
+            // 客户端暂停时会直接断开连接
+        } finally
+        {
+            try
+            {
+                socket.close();
+            } catch (IOException ignored)
+            {
+            }
+        }
+    }
+
+    /**
+     * @return 连接可以继续使用时返回true
+     */
+    private boolean handle(InputStream in, OutputStream out, byte[] buffer) throws IOException
+    {
+        String requestLine = readLine(in);
+        if (requestLine == null)
+        {
+            return false;
+        }
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0)
+        {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+            {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        mRequests.incrementAndGet();
+        boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !parts[1].startsWith(PATH_PREFIX))
+        {
+            writeStatus(out, "404 Not Found", keepAlive);
+            return keepAlive;
+        }
+        String path = parts[1].substring(PATH_PREFIX.length());
+        int slash = path.indexOf('/');
+        long size;
+        try
+        {
+            size = Long.parseLong(path.substring(0, Math.max(slash, 0)));
+        } catch (NumberFormatException e)
+        {
+            writeStatus(out, "404 Not Found", keepAlive);
+            return keepAlive;
+        }
+        String name = path.substring(slash + 1);
+
+        double fault;
+        synchronized (mRandom)
+        {
+            fault = mRandom.nextDouble();
+        }
+        if (fault < mDropRate)
+        {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        sleep(mLatencyMillis);
+        if (fault < mDropRate + mErrorRate)
+        {
+            mErrors.incrementAndGet();
+            writeStatus(out, "503 Service Unavailable", keepAlive);
+            return keepAlive;
+        }
+
+        String etag = etag(name, size);
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(etag)))
+        {
+            String[] values = range.substring("bytes=".length()).split("-", -1);
+            try
+            {
+                start = Long.parseLong(values[0]);
+                if (values.length > 1 && values[1].length() > 0)
+                {
+                    end = Math.min(Long.parseLong(values[1]), size - 1);
+                }
+            } catch (NumberFormatException e)
+            {
+                writeStatus(out, "416 Range Not Satisfiable", keepAlive);
+                return keepAlive;
+            }
+            if (start > end)
+            {
+                writeStatus(out, "416 Range Not Satisfiable", keepAlive);
+                return keepAlive;
+            }
+            partial = true;
+            mRangeRequests.incrementAndGet();
+        }
+        long length = end - start + 1;
+        StringBuilder sb = new StringBuilder();
+        sb.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        sb.append("Content-Length: ").append(length).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("ETag: ").append(etag).append("\r\n");
+        if (partial)
+        {
+            sb.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(size).append("\r\n");
+        }
+        sb.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+        if (parts[0].equals("HEAD"))
+        {
+            return keepAlive;
+        }
+
+        boolean truncate = fault < mDropRate + mErrorRate + mTruncateRate;
+        long limit = truncate ? length / 2 : length;
+        long sent = 0;
+        long began = System.nanoTime();
+        while (sent < limit)
+        {
+            int count = (int) Math.min(buffer.length, limit - sent);
+            fill(name, start + sent, buffer, count);
+            out.write(buffer, 0, count);
+            sent += count;
+            throttle(sent, began);
+        }
+        if (truncate)
+        {
+            mTruncated.incrementAndGet();
+            out.flush();
+            return false;
+        }
+        return keepAlive;
+    }
+
+    /**
+     * 按带宽算出发完sent字节应该用的时间，发快了就等
+     */
+    private void throttle(long sent, long began)
+    {
+        if (mBytesPerSecond <= 0)
+        {
+            return;
+        }
+        long expectedMillis = sent * 1000 / mBytesPerSecond;
+        long elapsedMillis = (System.nanoTime() - began) / 1000000;
+        sleep(expectedMillis - elapsedMillis);
+    }
+
+    private static void writeStatus(OutputStream out, String status, boolean keepAlive) throws IOException
+    {
+        String response = "HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n"
+                + (keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n") + "\r\n";
+        out.write(response.getBytes("ISO-8859-1"));
+    }
+
+    /**
+     * @return 连接已经关闭时返回null
+     */
+    private static String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) != -1)
+        {
+            if (c == '\n')
+            {
+                String s = line.toString("ISO-8859-1");
+                return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+            }
+            line.write(c);
+        }
+        return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+    }
+
+    private static void sleep(long millis)
+    {
+        if (millis <= 0)
+        {
+            return;
+        }
+        try
+        {
+            Thread.sleep(millis);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.handsmap.util.download;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.handsmap.nsstour.IDownloadService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 添加任务的客户端基准测试：在调用方进程中通过IDownloadService添加同样多的URL，一次逐个调用addTask，
+ * 一次调用addTasks，计时包括Binder调用和服务端的处理，输出平均到每个URL的耗时。
+ * <p/>
+ * 需要Binder和DownloadService，只能在设备上运行，比如在调试用的Activity或者instrumentation测试中：
+ * <pre>
+ * SubmitBenchmark.start(context, new SubmitBenchmark.Callback()
+ * {
+ *     public void onFinished(String report)
+ *     {
+ *         Log.i("SubmitBenchmark", report);
+ *     }
+ * });
+ * </pre>
+ * 使用回环地址上不存在的URL，每轮的URL都不同，避免合并到已有的任务；每次添加后用deleteTasks删除，
+ * 删除不计入耗时。添加在后台线程中进行，不占用UI线程
+ *
+ * @author DaHui
+ */
+public final class SubmitBenchmark implements ServiceConnection
+{
+
+    //每次添加的URL数
+    private static final int[] SIZES = {1, 10, 100};
+    //预热和计时的轮数
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+    private static final String URL_PREFIX = "http://127.0.0.1:9/submit-benchmark/";
+
+    public interface Callback
+    {
+        //在后台线程中回调
+        public void onFinished(String report);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private int mSequence;
+
+    private SubmitBenchmark(Context context, Callback callback)
+    {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+    }
+
+    /**
+     * 绑定DownloadService，连接上之后在后台线程中运行，结束后解除绑定
+     */
+    public static void start(Context context, Callback callback)
+    {
+        SubmitBenchmark benchmark = new SubmitBenchmark(context, callback);
+        Intent intent = new Intent(DownloadControl.SERVICE_ACTION);
+        intent.setPackage(context.getPackageName());
+        context.getApplicationContext().bindService(intent, benchmark, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder)
+    {
+        final IDownloadService service = IDownloadService.Stub.asInterface(binder);
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                String report;
+                try
+                {
+                    report = measure(service);
+                } catch (RemoteException e)
+                {
+                    report = "failed: " + e;
+                } finally
+                {
+                    mContext.unbindService(SubmitBenchmark.this);
+                }
+                mCallback.onFinished(report);
+            }
+        }, "SubmitBenchmark").start();
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name)
+    {
+    }
+
+    private String measure(IDownloadService service) throws RemoteException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int size : SIZES)
+        {
+            DownloadMetrics.Histogram single = new DownloadMetrics.Histogram();
+            DownloadMetrics.Histogram batch = new DownloadMetrics.Histogram();
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+            {
+                boolean measured = round >= WARMUP_ROUNDS;
+                // 交替先后顺序，服务端的缓存和JIT对两种方式的影响相同
+                if (round % 2 == 0)
+                {
+                    submitSingle(service, size, measured ? single : null);
+                    submitBatch(service, size, measured ? batch : null);
+                } else
+                {
+                    submitBatch(service, size, measured ? batch : null);
+                    submitSingle(service, size, measured ? single : null);
+                }
+            }
+            sb.append(String.format(Locale.US, "urls=%d, rounds=%d%n", size, ROUNDS));
+            single.dump(sb, "addTask", "us/url");
+            batch.dump(sb, "addTasks", "us/url");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 逐个调用addTask，每个URL一次Binder调用
+     *
+     * @param histogram 预热时为null
+     */
+    private void submitSingle(IDownloadService service, int size, DownloadMetrics.Histogram histogram)
+            throws RemoteException
+    {
+        List<String> urls = newUrls(size);
+        long start = System.nanoTime();
+        for (int i = 0; i < urls.size(); i++)
+        {
+            service.addTask(urls.get(i));
+        }
+        long nanos = System.nanoTime() - start;
+        service.deleteTasks(urls);
+        if (histogram != null)
+        {
+            histogram.record(nanos / 1000 / size);
+        }
+    }
+
+    /**
+     * 一次addTasks调用添加所有URL
+     */
+    private void submitBatch(IDownloadService service, int size, DownloadMetrics.Histogram histogram)
+            throws RemoteException
+    {
+        List<String> urls = newUrls(size);
+        long start = System.nanoTime();
+        service.addTasks(urls);
+        long nanos = System.nanoTime() - start;
+        service.deleteTasks(urls);
+        if (histogram != null)
+        {
+            histogram.record(nanos / 1000 / size);
+        }
+    }
+
+    private List<String> newUrls(int size)
+    {
+        List<String> urls = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            urls.add(URL_PREFIX + mSequence++ + ".bin");
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,258 @@
+package com.handsmap.util.download;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 调度延迟测试，在普通JVM上运行真正的TaskQueue和TaskRegistry
+ * <p/>
+ * 控制线程和DownloadControl.run()一样循环poll()并在记录的锁内开始任务，任务运行一段随机时间后切换为完成、
+ * 调用signalSlotFreed()；几个线程按随机间隔offer()新任务。任务可以开始的时间是入队时间和最近一次空出位置的时间中较晚的一个
+ * （TaskQueue.getReadyNanos()），从这个时间到控制线程开始任务的延迟就是调度本身的开销，不包括等待空位。
+ * 检查：这个延迟的P99不超过bound，任何时候正在下载的任务数不超过limit，所有任务都开始并且结束，失败时退出码为1。
+ * <pre>
+ * java -cp &lt;下载库的classes&gt; com.handsmap.util.download.TaskQueueLatencyTest tasks=20000 limit=6 bound=2000
+ * </pre>
+ *
+ * @author DaHui
+ */
+public final class TaskQueueLatencyTest
+{
+
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static
+    {
+        //任务数
+        DEFAULTS.put("tasks", "20000");
+        //同时下载的任务数
+        DEFAULTS.put("limit", "6");
+        //入队的线程数
+        DEFAULTS.put("producers", "4");
+        //任务运行的最长时间，微秒
+        DEFAULTS.put("run", "500");
+        //调度延迟P99的上限，微秒
+        DEFAULTS.put("bound", "2000");
+        DEFAULTS.put("seed", "1");
+    }
+
+    /**
+     * 只有URL和优先级的任务，代替DownloadTask
+     */
+    private static final class QueuedTask implements TaskRegistry.Task
+    {
+        private final String mUrl;
+        private final int mPriority;
+
+        QueuedTask(String url, int priority)
+        {
+            mUrl = url;
+            mPriority = priority;
+        }
+
+        @Override
+        public String getUrl()
+        {
+            return mUrl;
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return mPriority;
+        }
+    }
+
+    private final Map<String, String> mOptions;
+    private final TaskRegistry<QueuedTask> mRegistry = new TaskRegistry<>();
+    private final TaskQueue<QueuedTask> mQueue;
+    private final ScheduledExecutorService mRunner = Executors.newScheduledThreadPool(2);
+    private final DownloadMetrics.Histogram mDispatchMicros = new DownloadMetrics.Histogram();
+    private final DownloadMetrics.Histogram mEnqueueToStartMicros = new DownloadMetrics.Histogram();
+    private final AtomicInteger mOverLimit = new AtomicInteger();
+    private final CountDownLatch mFinished;
+
+    private TaskQueueLatencyTest(Map<String, String> options)
+    {
+        mOptions = options;
+        final int limit = (int) getLong("limit");
+        mQueue = new TaskQueue<>(mRegistry, new TaskQueue.SlotLimit()
+        {
+            @Override
+            public int getLimit()
+            {
+                return limit;
+            }
+        });
+        mFinished = new CountDownLatch((int) getLong("tasks"));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args)
+        {
+            int equals = arg.indexOf('=');
+            if (equals <= 0 || !DEFAULTS.containsKey(arg.substring(0, equals)))
+            {
+                System.err.println("unknown option " + arg + ", options: " + DEFAULTS.keySet());
+                System.exit(2);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        TaskQueueLatencyTest test = new TaskQueueLatencyTest(options);
+        boolean passed;
+        try
+        {
+            passed = test.run();
+        } finally
+        {
+            test.mRunner.shutdownNow();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws InterruptedException
+    {
+        Thread control = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatch();
+            }
+        }, "TaskQueueLatencyTest-control");
+        control.setDaemon(true);
+        control.start();
+
+        final int tasks = (int) getLong("tasks");
+        int producers = (int) getLong("producers");
+        final AtomicInteger next = new AtomicInteger();
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++)
+        {
+            final Random random = new Random(getLong("seed") + i);
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int index;
+                    while ((index = next.getAndIncrement()) < tasks)
+                    {
+                        TaskRegistry.Record<QueuedTask> record = mRegistry.add(
+                                new QueuedTask("task" + index, random.nextInt(3) * 5));
+                        record.queuedNanos = System.nanoTime();
+                        mQueue.offer(record);
+                        // 有时连续入队排满队列，有时稀疏，空位多的时候入队后马上可以开始
+                        if (random.nextInt(4) == 0)
+                        {
+                            sleepMicros(random.nextInt(200));
+                        }
+                    }
+                }
+            }, "TaskQueueLatencyTest-producer-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        boolean finished = mFinished.await(60, TimeUnit.SECONDS);
+        control.interrupt();
+
+        long p99 = mDispatchMicros.percentile(99);
+        long bound = getLong("bound");
+        StringBuilder sb = new StringBuilder();
+        sb.append("tasks=").append(tasks).append(", started=").append(mDispatchMicros.getCount())
+                .append(", completed=").append(mRegistry.count(TaskRegistry.STATE_COMPLETED))
+                .append(", over_limit=").append(mOverLimit.get()).append('\n');
+        mDispatchMicros.dump(sb, "ready_to_start", "us");
+        mEnqueueToStartMicros.dump(sb, "enqueue_to_start", "us");
+        sb.append("ready_to_start p99 ").append(p99).append("us, bound ").append(bound).append("us\n");
+        System.out.print(sb);
+
+        boolean passed = true;
+        if (!finished || mRegistry.count(TaskRegistry.STATE_COMPLETED) != tasks)
+        {
+            System.err.println("not all tasks finished");
+            passed = false;
+        }
+        if (mOverLimit.get() > 0)
+        {
+            System.err.println("running count exceeded limit " + mOverLimit.get() + " times");
+            passed = false;
+        }
+        if (p99 > bound)
+        {
+            System.err.println("ready_to_start p99 " + p99 + "us exceeds bound " + bound + "us");
+            passed = false;
+        }
+        return passed;
+    }
+
+    /**
+     * 和DownloadControl.run()相同的控制循环
+     */
+    private void dispatch()
+    {
+        int limit = (int) getLong("limit");
+        final Random random = new Random(getLong("seed"));
+        final long runMicros = getLong("run");
+        while (true)
+        {
+            final TaskRegistry.Record<QueuedTask> record = mQueue.poll();
+            if (record == null)
+            {
+                return;
+            }
+            synchronized (record)
+            {
+                if (record.getState() != TaskRegistry.STATE_RUNNING)
+                {
+                    continue;
+                }
+                long now = System.nanoTime();
+                mDispatchMicros.record(TimeUnit.NANOSECONDS.toMicros(now - mQueue.getReadyNanos()));
+                mEnqueueToStartMicros.record(TimeUnit.NANOSECONDS.toMicros(now - record.queuedNanos));
+                if (mRegistry.count(TaskRegistry.STATE_RUNNING) > limit)
+                {
+                    mOverLimit.incrementAndGet();
+                }
+                // 开始任务：运行一段时间后结束，空出下载位置
+                mRunner.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        record.transition(TaskRegistry.STATE_RUNNING, TaskRegistry.STATE_COMPLETED);
+                        mQueue.signalSlotFreed();
+                        mFinished.countDown();
+                    }
+                }, random.nextInt((int) Math.max(1, runMicros)), TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    private static void sleepMicros(long micros)
+    {
+        try
+        {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long getLong(String name)
+    {
+        return Long.parseLong(mOptions.get(name));
+    }
+}